@@ -0,0 +1,388 @@
+/*
+ * (C) Copyright 2016 elasticRTC (https://www.elasticRTC.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.elasticrtc.tutorial.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Admission of viewers into the pipelines of a tutorial.
+ * <p>
+ * Viewers are counted per pipeline, identified by a key such as the broadcast or room id, and
+ * checked along with the CPU of the media server hosting the pipeline, as last sampled by the
+ * {@link KurentoClientPool}. Handlers register that server with {@link #setHost} when they create
+ * the pipeline; until then, the least busy server, where it would be placed, is checked.
+ * <p>
+ * Under the soft limits ({@code admission.softViewers}, {@code admission.softCpu}) joins are
+ * admitted at once. Above them, joins wait in a queue per pipeline, and are admitted one every
+ * {@code admission.admitIntervalMillis} while the load stays under the soft limits. Above the
+ * hard limits ({@code admission.hardViewers}, {@code admission.hardCpu}), or with
+ * {@code admission.maxWaiting} joins already waiting, joins are rejected with a hint of when to
+ * retry. Joins waiting longer than {@code admission.maxWaitMillis} are rejected too. A limit of 0
+ * is not enforced. Joins admitted from the queue run on a pool of {@code admission.threads}, so a
+ * slow join does not hold back the admissions of other pipelines.
+ *
+ * @since 1.0.0
+ */
+public class AdmissionController {
+
+  private static final Logger log = LoggerFactory.getLogger(AdmissionController.class);
+
+  @Value("${admission.softViewers:0}")
+  private int softViewers;
+
+  @Value("${admission.hardViewers:0}")
+  private int hardViewers;
+
+  @Value("${admission.softCpu:70}")
+  private float softCpu;
+
+  @Value("${admission.hardCpu:90}")
+  private float hardCpu;
+
+  @Value("${admission.maxWaiting:100}")
+  private int maxWaiting;
+
+  @Value("${admission.maxWaitMillis:60000}")
+  private long maxWaitMillis;
+
+  @Value("${admission.admitIntervalMillis:500}")
+  private long admitIntervalMillis;
+
+  @Value("${admission.retryAfterSeconds:10}")
+  private int retryAfterSeconds;
+
+  @Value("${admission.threads:4}")
+  private int threads;
+
+  @Autowired
+  private KurentoClientPool kurento;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private ExecutorService executor;
+
+  private final Map<String, Pipeline> pipelines = new HashMap<>();
+  private final Map<String, String> tickets = new HashMap<>();
+  private final Map<String, MediaServer> hosts = new HashMap<>();
+
+  private final AtomicInteger admittedGauge = Metrics.gauge("admission.viewers",
+      new AtomicInteger());
+  private final AtomicInteger waitingGauge = Metrics.gauge("admission.waiting",
+      new AtomicInteger());
+  private final Counter admitted = Metrics.counter("admission.admitted");
+  private final Counter queued = Metrics.counter("admission.queued");
+
+  /**
+   * Receives the outcome of a join that had to wait.
+   */
+  public interface Listener {
+
+    /** The position of the join in the queue of its pipeline has changed. 1 is the next one. */
+    void waiting(int position);
+
+    void admitted();
+
+    void rejected(int retryAfterSeconds);
+  }
+
+  public enum State {
+    ADMITTED, WAITING, REJECTED
+  }
+
+  /**
+   * The immediate outcome of a join.
+   */
+  public static class Decision {
+    private final State state;
+    private final int position;
+    private final int retryAfterSeconds;
+
+    Decision(State state, int position, int retryAfterSeconds) {
+      this.state = state;
+      this.position = position;
+      this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    /** Position in the queue, for waiting joins. */
+    public int getPosition() {
+      return position;
+    }
+
+    /** Seconds to wait before trying again, for rejected joins. */
+    public int getRetryAfterSeconds() {
+      return retryAfterSeconds;
+    }
+  }
+
+  private static class Waiter {
+    final Listener listener;
+    final long since = System.currentTimeMillis();
+    int position;
+
+    Waiter(Listener listener, int position) {
+      this.listener = listener;
+      this.position = position;
+    }
+  }
+
+  private static class Pipeline {
+    int viewers;
+    final LinkedHashMap<String, Waiter> waiting = new LinkedHashMap<>();
+  }
+
+  @PostConstruct
+  public void start() {
+    executor = Executors.newFixedThreadPool(threads);
+    scheduler.scheduleWithFixedDelay(this::admitWaiting, admitIntervalMillis, admitIntervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    scheduler.shutdownNow();
+    executor.shutdownNow();
+  }
+
+  /**
+   * Requests the admission of a viewer into a pipeline.
+   *
+   * @param key
+   *          the pipeline
+   * @param ticket
+   *          the viewer, usually its session id
+   * @param listener
+   *          notified of the progress of the join, only if it has to wait
+   * @return whether the viewer is admitted, waiting or rejected
+   */
+  public synchronized Decision request(String key, String ticket, Listener listener) {
+    Pipeline pipeline = pipelines.computeIfAbsent(key, k -> new Pipeline());
+    float cpu = getCpu(key);
+
+    String reason = null;
+    if (tickets.containsKey(ticket)) {
+      reason = "duplicate";
+    } else if (isOver(pipeline.viewers, hardViewers) || isOver(cpu, hardCpu)) {
+      reason = isOver(cpu, hardCpu) ? "cpu" : "viewers";
+    } else if (pipeline.waiting.size() >= maxWaiting) {
+      reason = "queue";
+    }
+    if (reason != null) {
+      Metrics.counter("admission.rejected", "reason", reason).increment();
+      log.info("Rejected viewer {} of {}: {}", ticket, key, reason);
+      removeIfUnused(key, pipeline);
+      return new Decision(State.REJECTED, 0, retryAfterSeconds);
+    }
+
+    if (pipeline.waiting.isEmpty() && isUnderSoftLimits(pipeline, cpu)) {
+      admit(key, ticket, pipeline);
+      return new Decision(State.ADMITTED, 0, 0);
+    }
+
+    int position = pipeline.waiting.size() + 1;
+    pipeline.waiting.put(ticket, new Waiter(listener, position));
+    tickets.put(ticket, key);
+    waitingGauge.incrementAndGet();
+    queued.increment();
+    log.debug("Viewer {} of {} waiting at position {}", ticket, key, position);
+    return new Decision(State.WAITING, position, 0);
+  }
+
+  /**
+   * Registers the media server hosting the pipeline, whose CPU is checked from now on.
+   */
+  public synchronized void setHost(String key, MediaServer server) {
+    hosts.put(key, server);
+  }
+
+  /**
+   * Releases the slot of an admitted viewer, or cancels a waiting join.
+   */
+  public void release(String ticket) {
+    List<Runnable> notifications = new ArrayList<>();
+    synchronized (this) {
+      String key = tickets.remove(ticket);
+      Pipeline pipeline = key != null ? pipelines.get(key) : null;
+      if (pipeline == null) {
+        return;
+      }
+      if (pipeline.waiting.remove(ticket) != null) {
+        waitingGauge.decrementAndGet();
+        updatePositions(pipeline, notifications);
+      } else {
+        pipeline.viewers--;
+        admittedGauge.decrementAndGet();
+      }
+      removeIfUnused(key, pipeline);
+    }
+    notifications.forEach(Runnable::run);
+  }
+
+  /**
+   * Forgets a pipeline that has been released, rejecting the joins still waiting for it.
+   */
+  public void close(String key) {
+    List<Runnable> notifications = new ArrayList<>();
+    synchronized (this) {
+      hosts.remove(key);
+      Pipeline pipeline = pipelines.remove(key);
+      if (pipeline == null) {
+        return;
+      }
+      tickets.values().removeIf(key::equals);
+      admittedGauge.addAndGet(-pipeline.viewers);
+      waitingGauge.addAndGet(-pipeline.waiting.size());
+      for (Waiter waiter : pipeline.waiting.values()) {
+        notifications.add(() -> waiter.listener.rejected(retryAfterSeconds));
+      }
+    }
+    notifications.forEach(Runnable::run);
+  }
+
+  private void admitWaiting() {
+    List<Runnable> notifications = new ArrayList<>();
+    List<Listener> admissions = new ArrayList<>();
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+
+      for (Map.Entry<String, Pipeline> entry : pipelines.entrySet()) {
+        Pipeline pipeline = entry.getValue();
+        if (pipeline.waiting.isEmpty()) {
+          continue;
+        }
+        float cpu = getCpu(entry.getKey());
+
+        Iterator<Map.Entry<String, Waiter>> it = pipeline.waiting.entrySet().iterator();
+        while (it.hasNext()) {
+          Map.Entry<String, Waiter> waiting = it.next();
+          if (maxWaitMillis > 0 && now - waiting.getValue().since > maxWaitMillis) {
+            it.remove();
+            tickets.remove(waiting.getKey());
+            waitingGauge.decrementAndGet();
+            Metrics.counter("admission.rejected", "reason", "timeout").increment();
+            Listener listener = waiting.getValue().listener;
+            notifications.add(() -> listener.rejected(retryAfterSeconds));
+          }
+        }
+
+        // one per pipeline and interval, so a queue does not turn into a burst of joins
+        if (!pipeline.waiting.isEmpty() && isUnderSoftLimits(pipeline, cpu)) {
+          Map.Entry<String, Waiter> next = pipeline.waiting.entrySet().iterator().next();
+          pipeline.waiting.remove(next.getKey());
+          waitingGauge.decrementAndGet();
+          admit(entry.getKey(), next.getKey(), pipeline);
+          admissions.add(next.getValue().listener);
+        }
+        updatePositions(pipeline, notifications);
+      }
+      pipelines.entrySet().removeIf(entry -> isUnused(entry.getValue()));
+    }
+
+    notifications.forEach(this::deliver);
+    for (Listener listener : admissions) {
+      executor.execute(() -> deliver(listener::admitted));
+    }
+  }
+
+  private void deliver(Runnable notification) {
+    try {
+      notification.run();
+    } catch (Exception e) {
+      log.warn("Error notifying waiting viewer: {}", e.getMessage(), e);
+    }
+  }
+
+  private void admit(String key, String ticket, Pipeline pipeline) {
+    pipeline.viewers++;
+    tickets.put(ticket, key);
+    admittedGauge.incrementAndGet();
+    admitted.increment();
+  }
+
+  private void updatePositions(Pipeline pipeline, List<Runnable> notifications) {
+    int position = 1;
+    for (Waiter waiter : pipeline.waiting.values()) {
+      if (waiter.position != position) {
+        waiter.position = position;
+        int current = position;
+        notifications.add(() -> waiter.listener.waiting(current));
+      }
+      position++;
+    }
+  }
+
+  private boolean isUnderSoftLimits(Pipeline pipeline, float cpu) {
+    return !isOver(pipeline.viewers, softViewers) && !isOver(cpu, softCpu);
+  }
+
+  private static boolean isOver(float value, float limit) {
+    return limit > 0 && value >= limit;
+  }
+
+  /**
+   * CPU of the media server hosting the pipeline or, if not known yet, of the least busy one,
+   * where the pipeline would be placed.
+   */
+  private float getCpu(String key) {
+    MediaServer host = hosts.get(key);
+    if (host != null && host.isAvailable()) {
+      return host.getUsedCpu();
+    }
+    float cpu = Float.MAX_VALUE;
+    for (MediaServer server : kurento.getServers()) {
+      if (server.isAvailable()) {
+        cpu = Math.min(cpu, server.getUsedCpu());
+      }
+    }
+    return cpu == Float.MAX_VALUE ? 0 : cpu;
+  }
+
+  private void removeIfUnused(String key, Pipeline pipeline) {
+    if (isUnused(pipeline)) {
+      pipelines.remove(key);
+    }
+  }
+
+  private static boolean isUnused(Pipeline pipeline) {
+    return pipeline.viewers <= 0 && pipeline.waiting.isEmpty();
+  }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * (C) Copyright 2016 elasticRTC (https://www.elasticRTC.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.elasticrtc.tutorial.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Groups the viewers attaching to the same presenter within a short window.
+ * <p>
+ * Every new viewer makes the presenter produce a keyframe, so a burst of joins turns into a burst
+ * of keyframes. Attaches to a presenter arriving within {@code join.pacer.windowMillis} of the
+ * first one are held, and run together, in parallel, when the window closes or
+ * {@code join.pacer.maxBatch} attaches are waiting. Their media starts flowing at about the same
+ * time, so a single keyframe serves the whole group. A window of 0 runs every attach at once.
+ *
+ * @since 1.0.0
+ */
+public class JoinPacer {
+
+  private static final Logger log = LoggerFactory.getLogger(JoinPacer.class);
+
+  @Value("${join.pacer.windowMillis:200}")
+  private long windowMillis;
+
+  @Value("${join.pacer.maxBatch:50}")
+  private int maxBatch;
+
+  @Value("${join.pacer.threads:8}")
+  private int threads;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private ExecutorService executor;
+
+  private final Map<String, Batch> batches = new HashMap<>();
+
+  private final Counter attaches = Metrics.counter("join.pacer.attaches");
+  private final DistributionSummary batchSize = Metrics.summary("join.pacer.batchSize");
+
+  private class Batch {
+    final List<Runnable> attaches = new ArrayList<>();
+    ScheduledFuture<?> timer;
+  }
+
+  @PostConstruct
+  public void start() {
+    executor = Executors.newFixedThreadPool(threads);
+  }
+
+  @PreDestroy
+  public void stop() {
+    scheduler.shutdownNow();
+    executor.shutdownNow();
+  }
+
+  /**
+   * Runs the attach of a viewer with the rest of its group. Returns at once.
+   *
+   * @param presenter
+   *          identifies the presenter the viewer attaches to
+   */
+  public void submit(String presenter, Runnable attach) {
+    attaches.increment();
+    if (windowMillis <= 0) {
+      batchSize.record(1);
+      executor.execute(() -> run(presenter, attach));
+      return;
+    }
+
+    List<Runnable> full = null;
+    synchronized (batches) {
+      Batch batch = batches.get(presenter);
+      if (batch == null) {
+        batch = new Batch();
+        batches.put(presenter, batch);
+        batch.timer = scheduler.schedule(() -> flush(presenter), windowMillis,
+            TimeUnit.MILLISECONDS);
+      }
+      batch.attaches.add(attach);
+      if (batch.attaches.size() >= maxBatch) {
+        batch.timer.cancel(false);
+        batches.remove(presenter);
+        full = batch.attaches;
+      }
+    }
+    if (full != null) {
+      execute(presenter, full);
+    }
+  }
+
+  private void flush(String presenter) {
+    List<Runnable> group;
+    synchronized (batches) {
+      Batch batch = batches.remove(presenter);
+      if (batch == null) {
+        return;
+      }
+      group = batch.attaches;
+    }
+    execute(presenter, group);
+  }
+
+  private void execute(String presenter, List<Runnable> group) {
+    batchSize.record(group.size());
+    log.debug("Attaching {} viewers to {}", group.size(), presenter);
+    for (Runnable attach : group) {
+      executor.execute(() -> run(presenter, attach));
+    }
+  }
+
+  private void run(String presenter, Runnable attach) {
+    try {
+      attach.run();
+    } catch (Exception e) {
+      log.warn("Error attaching viewer to {}: {}", presenter, e.getMessage(), e);
+    }
+  }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * (C) Copyright 2016 elasticRTC (https://www.elasticRTC.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.elasticrtc.tutorial.common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaType;
+import org.kurento.client.RTCInboundRTPStreamStats;
+import org.kurento.client.Stats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Keyframe requests (PLI and FIR) sent by the media server to each presenter.
+ * <p>
+ * The video stats of the endpoint receiving each presenter are sampled every
+ * {@code keyframes.sampleMillis}. The requests sent since the previous sample are added to the
+ * {@code keyframe.requests} counter, and their rate is recorded in the
+ * {@code keyframe.requests.perMinute} summary, whose maximum points to the worst presenter. The
+ * meters are not tagged with the presenter: ids are unbounded and meters cannot be removed from
+ * the registry, so each presenter would leak its own. The rate of each presenter is logged at
+ * debug level instead.
+ *
+ * @since 1.0.0
+ */
+public class KeyframeMonitor {
+
+  private static final Logger log = LoggerFactory.getLogger(KeyframeMonitor.class);
+
+  @Value("${keyframes.sampleMillis:10000}")
+  private long sampleMillis;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private final Map<String, Presenter> presenters = new ConcurrentHashMap<>();
+
+  private final Counter requestsCounter = Metrics.counter("keyframe.requests");
+  private final DistributionSummary perMinuteSummary = Metrics
+      .summary("keyframe.requests.perMinute");
+
+  private static class Presenter {
+    final String id;
+    final MediaElement endpoint;
+    long requests = -1;
+    long sampledAt;
+    boolean sampling;
+
+    Presenter(String id, MediaElement endpoint) {
+      this.id = id;
+      this.endpoint = endpoint;
+    }
+  }
+
+  @PostConstruct
+  public void start() {
+    scheduler.scheduleWithFixedDelay(this::sample, sampleMillis, sampleMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Starts counting the keyframe requests sent to a presenter.
+   *
+   * @param id
+   *          identifies the presenter in the logs, such as its broadcast or room id
+   * @param endpoint
+   *          the endpoint receiving the media of the presenter
+   */
+  public void watch(String id, MediaElement endpoint) {
+    presenters.put(id, new Presenter(id, endpoint));
+  }
+
+  public void unwatch(String id) {
+    presenters.remove(id);
+  }
+
+  private void sample() {
+    for (Presenter presenter : presenters.values()) {
+      synchronized (presenter) {
+        if (presenter.sampling) {
+          continue;
+        }
+        presenter.sampling = true;
+      }
+      try {
+        presenter.endpoint.getStats(MediaType.VIDEO, new Continuation<Map<String, Stats>>() {
+
+          @Override
+          public void onSuccess(Map<String, Stats> stats) {
+            synchronized (presenter) {
+              presenter.sampling = false;
+              update(presenter, getRequests(stats));
+            }
+          }
+
+          @Override
+          public void onError(Throwable cause) {
+            synchronized (presenter) {
+              presenter.sampling = false;
+            }
+            log.debug("Could not sample stats of presenter {}: {}", presenter.id,
+                cause.getMessage());
+          }
+        });
+      } catch (RuntimeException e) {
+        // the endpoint may have been released since it was watched
+        synchronized (presenter) {
+          presenter.sampling = false;
+        }
+        log.debug("Could not sample stats of presenter {}: {}", presenter.id, e.getMessage());
+      }
+    }
+  }
+
+  private void update(Presenter presenter, long requests) {
+    long now = System.currentTimeMillis();
+    if (presenter.requests >= 0 && requests >= presenter.requests) {
+      long delta = requests - presenter.requests;
+      double perMinute = delta * 60000.0 / Math.max(now - presenter.sampledAt, 1);
+      requestsCounter.increment(delta);
+      perMinuteSummary.record(perMinute);
+      log.debug("Presenter {} was sent {} keyframe requests per minute", presenter.id, perMinute);
+    }
+    presenter.requests = requests;
+    presenter.sampledAt = now;
+  }
+
+  private static long getRequests(Map<String, Stats> stats) {
+    long requests = 0;
+    for (Stats stat : stats.values()) {
+      if (stat instanceof RTCInboundRTPStreamStats) {
+        RTCInboundRTPStreamStats inbound = (RTCInboundRTPStreamStats) stat;
+        requests += inbound.getPliCount() + inbound.getFirCount();
+      }
+    }
+    return requests;
+  }
+
+}
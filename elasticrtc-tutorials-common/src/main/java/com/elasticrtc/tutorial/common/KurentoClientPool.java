@@ -0,0 +1,179 @@
+/*
+ * (C) Copyright 2016 elasticRTC (https://www.elasticRTC.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.elasticrtc.tutorial.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Connections to the media servers listed in {@code kms.urls}, used by the tutorials to create
+ * their media pipelines. If no server is listed, there is a single connection to the default
+ * media server, as {@link KurentoClient#create()} does.
+ * <p>
+ * The load of every server is sampled from its server manager every {@code kms.sampleMillis}.
+ * Each new pipeline is placed by the {@link PlacementPolicy} bean, if there is one, or by the
+ * policy named in {@code kms.placement}: {@code leastLoaded}, {@code powerOfTwoChoices} or
+ * {@code roomAffinity}. Servers using more than {@code kms.cpuLimit} percent of CPU, or whose
+ * last sample failed, are only chosen if every server is in that state.
+ *
+ * @since 1.0.0
+ */
+public class KurentoClientPool {
+
+  private static final Logger log = LoggerFactory.getLogger(KurentoClientPool.class);
+
+  @Value("${kms.urls:}")
+  private String urls;
+
+  @Value("${kms.placement:leastLoaded}")
+  private String placement;
+
+  @Value("${kms.sampleMillis:5000}")
+  private long sampleMillis;
+
+  @Value("${kms.cpuSampleMillis:1000}")
+  private int cpuSampleMillis;
+
+  @Value("${kms.cpuLimit:90}")
+  private float cpuLimit;
+
+  @Autowired(required = false)
+  private PlacementPolicy policy;
+
+  private List<MediaServer> servers = Collections.emptyList();
+
+  private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+
+  @PostConstruct
+  public void connect() {
+    List<MediaServer> connected = new ArrayList<>();
+    if (urls == null || urls.trim().isEmpty()) {
+      connected.add(new MediaServer("default", KurentoClient.create()));
+    } else {
+      for (String uri : urls.split(",")) {
+        connected.add(new MediaServer(uri.trim(), KurentoClient.create(uri.trim())));
+      }
+    }
+    servers = Collections.unmodifiableList(connected);
+
+    if (policy == null) {
+      policy = createPolicy(placement);
+    }
+    log.info("Placing media pipelines on {} with {}", servers, policy.getClass().getSimpleName());
+
+    sampler.scheduleWithFixedDelay(this::sample, 0, sampleMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void disconnect() {
+    sampler.shutdownNow();
+    for (MediaServer server : servers) {
+      server.getClient().destroy();
+    }
+  }
+
+  public List<MediaServer> getServers() {
+    return servers;
+  }
+
+  /**
+   * Chooses the server for a new pipeline, and counts the pipeline in its load until the next
+   * sample. For callers that create the pipeline themselves.
+   *
+   * @param affinityKey
+   *          identifies the group the pipeline belongs to, like a room, or {@code null}
+   */
+  public MediaServer choose(String affinityKey) {
+    MediaServer server = select(affinityKey);
+    server.placed();
+    return server;
+  }
+
+  /**
+   * Chooses a server as {@link #choose(String)} does, without counting a pipeline in its load.
+   * For callers that may not create a pipeline at all, like the ones leasing pre-built pipelines,
+   * which count the ones they create with {@link MediaServer#placed()}.
+   */
+  public MediaServer select(String affinityKey) {
+    List<MediaServer> candidates = new ArrayList<>(servers.size());
+    for (MediaServer server : servers) {
+      if (server.isAvailable() && server.getUsedCpu() < cpuLimit) {
+        candidates.add(server);
+      }
+    }
+    if (candidates.isEmpty()) {
+      candidates = servers;
+    }
+    return policy.choose(candidates, affinityKey);
+  }
+
+  public MediaPipeline createMediaPipeline() {
+    return createMediaPipeline(choose(null));
+  }
+
+  public MediaPipeline createMediaPipeline(String affinityKey) {
+    return createMediaPipeline(choose(affinityKey));
+  }
+
+  /**
+   * Creates a pipeline on a server already chosen, for callers that need to know where it lives.
+   */
+  public MediaPipeline createMediaPipeline(MediaServer server) {
+    log.debug("Creating media pipeline on {} (load {}, CPU {}%)", server, server.getLoad(),
+        server.getUsedCpu());
+    return server.getClient().createMediaPipeline();
+  }
+
+  private void sample() {
+    for (MediaServer server : servers) {
+      try {
+        server.sample(cpuSampleMillis);
+      } catch (Exception e) {
+        log.warn("Could not sample the load of {}: {}", server, e.getMessage());
+      }
+    }
+  }
+
+  private static PlacementPolicy createPolicy(String name) {
+    switch (name) {
+      case "leastLoaded":
+        return new LeastLoadedPolicy();
+      case "powerOfTwoChoices":
+        return new PowerOfTwoChoicesPolicy();
+      case "roomAffinity":
+        return new RoomAffinityPolicy();
+      default:
+        throw new IllegalArgumentException("Unknown placement policy: " + name);
+    }
+  }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright 2016 elasticRTC (https://www.elasticRTC.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.elasticrtc.tutorial.common;
+
+import java.util.List;
+
+/**
+ * Chooses the server with the lowest load, breaking ties by CPU usage.
+ *
+ * @since 1.0.0
+ */
+public class LeastLoadedPolicy implements PlacementPolicy {
+
+  @Override
+  public MediaServer choose(List<MediaServer> servers, String affinityKey) {
+    MediaServer best = null;
+    for (MediaServer server : servers) {
+      if (best == null || isLessLoaded(server, best)) {
+        best = server;
+      }
+    }
+    return best;
+  }
+
+  static boolean isLessLoaded(MediaServer server, MediaServer other) {
+    if (server.getLoad() != other.getLoad()) {
+      return server.getLoad() < other.getLoad();
+    }
+    return server.getUsedCpu() < other.getUsedCpu();
+  }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2016 elasticRTC (https://www.elasticRTC.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.elasticrtc.tutorial.common;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.ServerManager;
+
+/**
+ * A media server of the {@link KurentoClientPool}, with its last sampled load.
+ * <p>
+ * Pipelines placed on the server since the last sample are counted on their own, so a burst of
+ * placements between two samples is not sent to the same server.
+ *
+ * @since 1.0.0
+ */
+public class MediaServer {
+
+  private final String uri;
+  private final KurentoClient client;
+
+  private final AtomicInteger placed = new AtomicInteger();
+
+  private volatile boolean available = true;
+  private volatile int pipelines;
+  private volatile int endpoints;
+  private volatile float usedCpu;
+  private volatile long usedMemory;
+
+  public MediaServer(String uri, KurentoClient client) {
+    this.uri = uri;
+    this.client = client;
+  }
+
+  public String getUri() {
+    return uri;
+  }
+
+  public KurentoClient getClient() {
+    return client;
+  }
+
+  /**
+   * Whether the last sample succeeded. Unavailable servers are only chosen if no other is left.
+   */
+  public boolean isAvailable() {
+    return available && !client.isClosed();
+  }
+
+  public int getPipelines() {
+    return pipelines + placed.get();
+  }
+
+  public int getEndpoints() {
+    return endpoints;
+  }
+
+  /** CPU usage, in percent, during the last sample. */
+  public float getUsedCpu() {
+    return usedCpu;
+  }
+
+  /** Memory used by the media server, in KiB. */
+  public long getUsedMemory() {
+    return usedMemory;
+  }
+
+  /**
+   * The number of media elements the server is hosting, including the pipelines placed since the
+   * last sample. Lower is better.
+   */
+  public int getLoad() {
+    return getPipelines() + endpoints;
+  }
+
+  /**
+   * Counts a pipeline created on the server in its load, until the next sample.
+   */
+  public void placed() {
+    placed.incrementAndGet();
+  }
+
+  /**
+   * Reads the load of the server from its server manager.
+   *
+   * @param cpuIntervalMillis
+   *          time during which the CPU usage is measured
+   */
+  void sample(int cpuIntervalMillis) {
+    int placedBefore = placed.get();
+    try {
+      ServerManager manager = client.getServerManager();
+      List<MediaPipeline> current = manager.getPipelines();
+      int children = 0;
+      for (MediaPipeline pipeline : current) {
+        children += pipeline.getChildren().size();
+      }
+      usedCpu = manager.getUsedCpu(cpuIntervalMillis);
+      usedMemory = manager.getUsedMemory();
+      pipelines = current.size();
+      endpoints = children;
+      available = true;
+    } catch (RuntimeException e) {
+      available = false;
+      throw e;
+    } finally {
+      placed.addAndGet(-placedBefore);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return uri;
+  }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * (C) Copyright 2016 elasticRTC (https://www.elasticRTC.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.elasticrtc.tutorial.common;
+
+import java.util.List;
+
+/**
+ * Chooses the media server where a new media pipeline is created.
+ *
+ * @since 1.0.0
+ */
+public interface PlacementPolicy {
+
+  /**
+   * @param servers
+   *          the candidate servers, never empty. Overloaded servers are left out while there are
+   *          others
+   * @param affinityKey
+   *          identifies the group the pipeline belongs to, like a room, or {@code null}
+   * @return one of the candidate servers
+   */
+  MediaServer choose(List<MediaServer> servers, String affinityKey);
+
+}
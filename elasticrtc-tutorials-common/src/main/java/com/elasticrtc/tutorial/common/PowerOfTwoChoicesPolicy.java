@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright 2016 elasticRTC (https://www.elasticRTC.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.elasticrtc.tutorial.common;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks two servers at random and chooses the least loaded of them. Unlike always choosing the
+ * least loaded server, it does not send every placement to the same server while the load
+ * samples are stale.
+ *
+ * @since 1.0.0
+ */
+public class PowerOfTwoChoicesPolicy implements PlacementPolicy {
+
+  @Override
+  public MediaServer choose(List<MediaServer> servers, String affinityKey) {
+    int size = servers.size();
+    if (size == 1) {
+      return servers.get(0);
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int first = random.nextInt(size);
+    int second = (first + 1 + random.nextInt(size - 1)) % size;
+
+    MediaServer a = servers.get(first);
+    MediaServer b = servers.get(second);
+    return LeastLoadedPolicy.isLessLoaded(b, a) ? b : a;
+  }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * (C) Copyright 2016 elasticRTC (https://www.elasticRTC.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.elasticrtc.tutorial.common;
+
+import java.util.List;
+
+/**
+ * Places every pipeline with the same affinity key on the same server, so the pipelines of a room
+ * can be connected without relaying media between servers. Uses rendezvous hashing: when a server
+ * leaves the candidates, only the keys it was hosting move elsewhere. Pipelines without a key are
+ * placed on the least loaded server.
+ *
+ * @since 1.0.0
+ */
+public class RoomAffinityPolicy implements PlacementPolicy {
+
+  private final PlacementPolicy fallback = new LeastLoadedPolicy();
+
+  @Override
+  public MediaServer choose(List<MediaServer> servers, String affinityKey) {
+    if (affinityKey == null) {
+      return fallback.choose(servers, null);
+    }
+    MediaServer best = null;
+    long bestWeight = Long.MIN_VALUE;
+    for (MediaServer server : servers) {
+      long weight = mix(affinityKey.hashCode() * 31L + server.getUri().hashCode());
+      if (best == null || weight > bestWeight) {
+        best = server;
+        bestWeight = weight;
+      }
+    }
+    return best;
+  }
+
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * (C) Copyright 2016 elasticRTC (https://www.elasticRTC.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.elasticrtc.tutorial.common;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+
+import com.google.gson.JsonObject;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Outbound messages of the WebSocket sessions of a tutorial.
+ * <p>
+ * Every session has a bounded queue, drained by a single task at a time on a shared pool, so
+ * callers never block on a slow client and messages keep their order without locking the
+ * session. A session is evicted, and closed, when its queue exceeds {@code ws.outbound.maxMessages}
+ * messages or {@code ws.outbound.maxBufferBytes} bytes, or when a single send takes longer
+ * than {@code ws.outbound.sendTimeLimitMillis}. The same limit is set as the blocking send timeout
+ * of the container, so a stalled client does not hold a drain thread for longer than that. An
+ * evicted session is closed on the pool, and stays evicted until {@link #remove} is called.
+ *
+ * @since 1.0.0
+ */
+public class SessionSender {
+
+  private static final Logger log = LoggerFactory.getLogger(SessionSender.class);
+
+  /** Messages sent by a drain task before yielding its thread to other sessions. */
+  private static final int DRAIN_BATCH = 32;
+
+  private static final String BLOCKING_SEND_TIMEOUT =
+      "org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT";
+
+  @Value("${ws.outbound.maxMessages:1000}")
+  private int maxMessages;
+
+  @Value("${ws.outbound.maxBufferBytes:1048576}")
+  private long maxBufferBytes;
+
+  @Value("${ws.outbound.sendTimeLimitMillis:10000}")
+  private long sendTimeLimitMillis;
+
+  @Value("${ws.outbound.threads:4}")
+  private int threads;
+
+  private final Map<String, Outbound> sessions = new ConcurrentHashMap<>();
+
+  private final AtomicInteger queued = Metrics.gauge("ws.outbound.queued", new AtomicInteger());
+  private final Counter sent = Metrics.counter("ws.outbound.sent");
+  private final Counter dropped = Metrics.counter("ws.outbound.dropped");
+
+  private ExecutorService executor;
+  private ScheduledExecutorService watchdog;
+
+  private class Outbound {
+    final WebSocketSession session;
+    final Queue<TextMessage> messages = new ConcurrentLinkedQueue<>();
+    final AtomicInteger size = new AtomicInteger();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicBoolean draining = new AtomicBoolean();
+    volatile long sendingSince;
+    volatile boolean evicted;
+
+    Outbound(WebSocketSession session) {
+      this.session = session;
+    }
+  }
+
+  public SessionSender() {
+    Metrics.gauge("ws.outbound.sessions", sessions, Map::size);
+  }
+
+  @PostConstruct
+  public void start() {
+    executor = Executors.newFixedThreadPool(threads);
+    watchdog = Executors.newSingleThreadScheduledExecutor();
+    long period = Math.max(sendTimeLimitMillis / 2, 100);
+    watchdog.scheduleWithFixedDelay(this::checkSendTimes, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    watchdog.shutdownNow();
+    executor.shutdownNow();
+  }
+
+  public void send(WebSocketSession session, JsonObject message) {
+    send(session, message.toString());
+  }
+
+  /**
+   * Queues a message for the session. Never blocks: messages for closed or evicted sessions are
+   * dropped, and a session whose queue is over its limits is evicted.
+   */
+  public void send(WebSocketSession session, String payload) {
+    if (!session.isOpen()) {
+      dropped.increment();
+      return;
+    }
+    Outbound out = sessions.computeIfAbsent(session.getId(), id -> open(session));
+    if (out.evicted) {
+      dropped.increment();
+      return;
+    }
+    if (out.size.get() >= maxMessages) {
+      evict(out, "maxMessages");
+      dropped.increment();
+      return;
+    }
+    TextMessage message = new TextMessage(payload);
+    if (out.bytes.get() + message.getPayloadLength() > maxBufferBytes) {
+      evict(out, "maxBufferBytes");
+      dropped.increment();
+      return;
+    }
+
+    out.size.incrementAndGet();
+    out.bytes.addAndGet(message.getPayloadLength());
+    queued.incrementAndGet();
+    out.messages.add(message);
+    schedule(out);
+  }
+
+  /**
+   * Discards the queue of a closed session. To be called from
+   * {@code afterConnectionClosed}.
+   */
+  public void remove(WebSocketSession session) {
+    Outbound out = sessions.remove(session.getId());
+    if (out != null) {
+      out.evicted = true;
+      discard(out);
+    }
+  }
+
+  private Outbound open(WebSocketSession session) {
+    if (session instanceof NativeWebSocketSession) {
+      javax.websocket.Session nativeSession =
+          ((NativeWebSocketSession) session).getNativeSession(javax.websocket.Session.class);
+      if (nativeSession != null) {
+        // blocked sends fail after this long instead of holding the drain thread
+        nativeSession.getUserProperties().put(BLOCKING_SEND_TIMEOUT, sendTimeLimitMillis);
+      }
+    }
+    return new Outbound(session);
+  }
+
+  private void schedule(Outbound out) {
+    if (out.draining.compareAndSet(false, true)) {
+      executor.execute(() -> drain(out));
+    }
+  }
+
+  private void drain(Outbound out) {
+    int count = 0;
+    TextMessage message;
+    while (!out.evicted && count++ < DRAIN_BATCH && (message = out.messages.poll()) != null) {
+      out.size.decrementAndGet();
+      out.bytes.addAndGet(-message.getPayloadLength());
+      queued.decrementAndGet();
+
+      out.sendingSince = System.currentTimeMillis();
+      try {
+        out.session.sendMessage(message);
+        sent.increment();
+      } catch (IOException | RuntimeException e) {
+        log.debug("Could not send message to session {}: {}", out.session.getId(), e.getMessage());
+        dropped.increment();
+      } finally {
+        out.sendingSince = 0;
+      }
+    }
+    out.draining.set(false);
+
+    if (out.evicted) {
+      discard(out);
+    } else if (!out.messages.isEmpty()) {
+      // messages queued after the last poll, or left over by the batch limit
+      schedule(out);
+    }
+  }
+
+  private void checkSendTimes() {
+    long now = System.currentTimeMillis();
+    for (Outbound out : sessions.values()) {
+      long since = out.sendingSince;
+      if (since != 0 && now - since > sendTimeLimitMillis) {
+        evict(out, "sendTimeLimit");
+      }
+    }
+  }
+
+  private void evict(Outbound out, String reason) {
+    synchronized (out) {
+      if (out.evicted) {
+        return;
+      }
+      out.evicted = true;
+    }
+    Metrics.counter("ws.outbound.evicted", "reason", reason).increment();
+    log.warn("Evicting slow session {}: {} exceeded, {} messages queued", out.session.getId(),
+        reason, out.size.get());
+
+    // kept in the map, so later sends are dropped until the handler removes the session
+    discard(out);
+    try {
+      executor.execute(() -> close(out));
+    } catch (RejectedExecutionException e) {
+      log.debug("Not closing session {}: sender stopped", out.session.getId());
+    }
+  }
+
+  private void close(Outbound out) {
+    try {
+      out.session.close(CloseStatus.SESSION_NOT_RELIABLE);
+    } catch (IOException | RuntimeException e) {
+      log.debug("Error closing session {}: {}", out.session.getId(), e.getMessage());
+    }
+  }
+
+  private void discard(Outbound out) {
+    TextMessage message;
+    while ((message = out.messages.poll()) != null) {
+      out.size.decrementAndGet();
+      out.bytes.addAndGet(-message.getPayloadLength());
+      queued.decrementAndGet();
+      dropped.increment();
+    }
+  }
+
+}
@@ -17,7 +17,6 @@
 
 package com.elasticrtc.tutorial.loopback.jsonrpc;
 
-import org.kurento.client.KurentoClient;
 import org.kurento.jsonrpc.internal.server.config.JsonRpcConfiguration;
 import org.kurento.jsonrpc.server.JsonRpcConfigurer;
 import org.kurento.jsonrpc.server.JsonRpcHandlerRegistry;
@@ -27,6 +26,8 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+
 /**
  * Loopback demo handler
  *
@@ -44,8 +45,8 @@ public class LoopbackApp implements JsonRpcConfigurer {
   }
 
   @Bean
-  public KurentoClient kurentoClient() {
-    return KurentoClient.create();
+  public KurentoClientPool kurentoClientPool() {
+    return new KurentoClientPool();
   }
 
   @Override
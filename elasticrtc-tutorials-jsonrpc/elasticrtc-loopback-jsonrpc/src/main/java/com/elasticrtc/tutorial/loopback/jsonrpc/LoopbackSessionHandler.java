@@ -24,7 +24,6 @@ import java.util.concurrent.ConcurrentHashMap;
 import javax.inject.Named;
 
 import org.kurento.client.IceCandidate;
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.WebRtcEndpoint;
 import org.kurento.jsonrpc.JsonRpcMethod;
@@ -32,6 +31,7 @@ import org.kurento.jsonrpc.Session;
 import org.kurento.jsonrpc.TypeDefaultJsonRpcHandler;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
@@ -46,7 +46,7 @@ public class LoopbackSessionHandler extends TypeDefaultJsonRpcHandler {
   private static final Gson gson = new GsonBuilder().create();
 
   @Autowired
-  private KurentoClient kurento;
+  private KurentoClientPool kurento;
 
   private final Map<String, ClientSession> clients = new ConcurrentHashMap<>();
 
@@ -72,7 +72,7 @@ public class LoopbackSessionHandler extends TypeDefaultJsonRpcHandler {
     MediaPipeline pipeline = kurento.createMediaPipeline();
     WebRtcEndpoint webrtc = new WebRtcEndpoint.Builder(pipeline).build();
 
-    client.setPipeline(kurento.createMediaPipeline());
+    client.setPipeline(pipeline);
     client.setWebRtcEndpoint(webrtc);
     return client.generateOffer();
   }
@@ -0,0 +1,253 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Schedules the server side offers sent to peers whose tracks have changed.
+ * <p>
+ * Requests for the same peer within {@code sfu.renegotiation.debounceMillis} are coalesced into a
+ * single offer. There is at most one offer in flight per peer: changes requested while waiting for
+ * the answer are negotiated once it arrives, or once {@code sfu.renegotiation.answerTimeoutMillis}
+ * expires. Offers are generated on the {@link ViewerFanOut} pool, so several peers are
+ * renegotiated in parallel. Negotiations started by the peer itself go through
+ * {@link #negotiate}, so the server never sends an offer while the peer has one of its own.
+ *
+ * @since 6.5.1
+ */
+public class RenegotiationScheduler {
+
+  private static final Logger log = LoggerFactory.getLogger(RenegotiationScheduler.class);
+
+  @Value("${sfu.renegotiation.debounceMillis:100}")
+  private long debounceMillis;
+
+  @Value("${sfu.renegotiation.answerTimeoutMillis:10000}")
+  private long answerTimeoutMillis;
+
+  @Autowired
+  private ViewerFanOut fanOut;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private final Map<Object, PeerState> peers = new HashMap<>();
+
+  private final Counter offers = Metrics.counter("sfu.renegotiation.offers");
+  private final Counter coalesced = Metrics.counter("sfu.renegotiation.coalesced");
+
+  private class PeerState {
+    BooleanSupplier offer;
+    ScheduledFuture<?> task;
+    int generation;
+    boolean awaitingAnswer;
+    boolean negotiating;
+    boolean pending;
+
+    PeerState(BooleanSupplier offer) {
+      this.offer = offer;
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Requests the renegotiation of a peer.
+   *
+   * @param peer
+   *          the peer to renegotiate, used as key
+   * @param offer
+   *          sends the offer to the peer. Returns {@code false} if no offer was needed, so no
+   *          answer is awaited
+   */
+  public synchronized void request(Object peer, BooleanSupplier offer) {
+    PeerState state = peers.get(peer);
+
+    if (state == null) {
+      state = new PeerState(offer);
+      peers.put(peer, state);
+    } else if (state.awaitingAnswer || state.negotiating) {
+      state.offer = offer;
+      state.pending = true;
+      coalesced.increment();
+      return;
+    } else if (state.task != null) {
+      // the offer about to be sent already covers this change
+      coalesced.increment();
+      return;
+    }
+    state.offer = offer;
+    schedule(peer, state, debounceMillis);
+  }
+
+  /**
+   * Runs a negotiation started by the peer, such as processing an offer of its own. Server offers
+   * for the peer wait until it completes; a scheduled one is sent afterwards.
+   *
+   * @param awaitAnswer
+   *          whether the negotiation returns an offer to the peer, whose answer is then awaited
+   *          as for the offers sent by the scheduler
+   * @throws IllegalStateException
+   *           if a server offer is waiting for the answer of the peer, as both sides would hold
+   *           an offer at the same time
+   */
+  public <T> T negotiate(Object peer, boolean awaitAnswer, Supplier<T> negotiation) {
+    PeerState state;
+    synchronized (this) {
+      state = peers.get(peer);
+      if (state == null) {
+        state = new PeerState(null);
+        peers.put(peer, state);
+      } else if (state.awaitingAnswer || state.negotiating) {
+        throw new IllegalStateException("Renegotiation in progress, try again later");
+      } else if (state.task != null) {
+        state.task.cancel(false);
+        state.task = null;
+        state.generation++;
+        state.pending = true;
+      }
+      state.negotiating = true;
+    }
+
+    boolean offered = false;
+    try {
+      T result = negotiation.get();
+      offered = awaitAnswer;
+      return result;
+    } finally {
+      synchronized (this) {
+        state.negotiating = false;
+        if (peers.get(peer) == state) {
+          if (offered) {
+            awaitAnswer(peer, state);
+          } else {
+            next(peer, state);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Called when the peer has answered the last offer. Changes requested in the meantime are
+   * negotiated now.
+   */
+  public synchronized void answered(Object peer) {
+    PeerState state = peers.get(peer);
+    if (state == null || !state.awaitingAnswer) {
+      return;
+    }
+    if (state.task != null) {
+      state.task.cancel(false);
+      state.task = null;
+    }
+    state.awaitingAnswer = false;
+    next(peer, state);
+  }
+
+  public synchronized void cancel(Object peer) {
+    PeerState state = peers.remove(peer);
+    if (state != null && state.task != null) {
+      state.task.cancel(false);
+    }
+  }
+
+  private void schedule(Object peer, PeerState state, long delayMillis) {
+    state.pending = false;
+    int generation = ++state.generation;
+    state.task = scheduler.schedule(() -> fanOut.execute(() -> offer(peer, state, generation)),
+        delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void next(Object peer, PeerState state) {
+    if (state.pending) {
+      schedule(peer, state, debounceMillis);
+    } else {
+      peers.remove(peer);
+    }
+  }
+
+  private void offer(Object peer, PeerState state, int generation) {
+    synchronized (this) {
+      // a task cancelled after it was handed over to the pool
+      if (peers.get(peer) != state || state.generation != generation || state.awaitingAnswer) {
+        return;
+      }
+      state.task = null;
+      state.awaitingAnswer = true;
+    }
+
+    boolean sent = false;
+    try {
+      sent = state.offer.getAsBoolean();
+    } catch (Exception e) {
+      log.warn("Error renegotiating {}: {}", peer, e.getMessage());
+    }
+
+    synchronized (this) {
+      if (sent) {
+        offers.increment();
+      }
+      // the answer may have arrived before the offer call returned
+      if (peers.get(peer) != state || !state.awaitingAnswer) {
+        return;
+      }
+      if (sent) {
+        awaitAnswer(peer, state);
+      } else {
+        state.awaitingAnswer = false;
+        next(peer, state);
+      }
+    }
+  }
+
+  private void awaitAnswer(Object peer, PeerState state) {
+    state.awaitingAnswer = true;
+    state.task = scheduler.schedule(() -> answerTimeout(peer, state), answerTimeoutMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void answerTimeout(Object peer, PeerState state) {
+    if (peers.get(peer) != state || !state.awaitingAnswer) {
+      return;
+    }
+    log.warn("No SDP answer received from {} in {} ms", peer, answerTimeoutMillis);
+    state.task = null;
+    state.awaitingAnswer = false;
+    next(peer, state);
+  }
+
+}
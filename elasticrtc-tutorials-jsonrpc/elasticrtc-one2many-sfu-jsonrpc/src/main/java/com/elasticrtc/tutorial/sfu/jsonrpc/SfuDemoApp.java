@@ -15,7 +15,6 @@
 
 package com.elasticrtc.tutorial.sfu.jsonrpc;
 
-import org.kurento.client.KurentoClient;
 import org.kurento.jsonrpc.internal.server.config.JsonRpcConfiguration;
 import org.kurento.jsonrpc.server.JsonRpcConfigurer;
 import org.kurento.jsonrpc.server.JsonRpcHandlerRegistry;
@@ -26,11 +25,21 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
 
+import com.elasticrtc.tutorial.common.AdmissionController;
+import com.elasticrtc.tutorial.common.KeyframeMonitor;
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.sfu.jsonrpc.cascade.SfuCascade;
 import com.elasticrtc.tutorial.sfu.jsonrpc.monoliticsfu.MonoliticSfuDemoHandler;
 import com.elasticrtc.tutorial.sfu.jsonrpc.multibrowser.SfuMultibrowserDemoHandler;
+import com.elasticrtc.tutorial.sfu.jsonrpc.multisession.AdaptiveBitrateController;
+import com.elasticrtc.tutorial.sfu.jsonrpc.multisession.IceCandidateCoalescer;
 import com.elasticrtc.tutorial.sfu.jsonrpc.multisession.SfuMultisessionDemoHandler;
+import com.elasticrtc.tutorial.sfu.jsonrpc.multisession.SfuPool;
 import com.elasticrtc.tutorial.sfu.jsonrpc.multistream.SfuMultistreamRenegotiationDemoHandler;
 import com.elasticrtc.tutorial.sfu.jsonrpc.peerconnection.PeerConnectionDemoHandler;
+import com.elasticrtc.tutorial.sfu.jsonrpc.peerconnection.SimulcastLayerController;
+import com.elasticrtc.tutorial.sfu.jsonrpc.peerconnection.SubscriberUpdater;
+import com.elasticrtc.tutorial.sfu.jsonrpc.recording.SegmentedRecorderFactory;
 
 /**
  * SFU
@@ -48,6 +57,61 @@ public class SfuDemoApp implements JsonRpcConfigurer {
     return new SfuMultisessionDemoHandler();
   }
 
+  @Bean
+  public AdaptiveBitrateController adaptiveBitrateController() {
+    return new AdaptiveBitrateController();
+  }
+
+  @Bean
+  public IceCandidateCoalescer iceCandidateCoalescer() {
+    return new IceCandidateCoalescer();
+  }
+
+  @Bean
+  public SfuPool sfuPool() {
+    return new SfuPool();
+  }
+
+  @Bean
+  public SfuCascade sfuCascade() {
+    return new SfuCascade();
+  }
+
+  @Bean
+  public SegmentedRecorderFactory segmentedRecorderFactory() {
+    return new SegmentedRecorderFactory();
+  }
+
+  @Bean
+  public ViewerFanOut viewerFanOut() {
+    return new ViewerFanOut();
+  }
+
+  @Bean
+  public RenegotiationScheduler renegotiationScheduler() {
+    return new RenegotiationScheduler();
+  }
+
+  @Bean
+  public SubscriberUpdater subscriberUpdater() {
+    return new SubscriberUpdater();
+  }
+
+  @Bean
+  public SimulcastLayerController simulcastLayerController() {
+    return new SimulcastLayerController();
+  }
+
+  @Bean
+  public AdmissionController admissionController() {
+    return new AdmissionController();
+  }
+
+  @Bean
+  public KeyframeMonitor keyframeMonitor() {
+    return new KeyframeMonitor();
+  }
+
   @Bean
   public SfuMultibrowserDemoHandler multibrowserHandler() {
     return new SfuMultibrowserDemoHandler();
@@ -69,8 +133,8 @@ public class SfuDemoApp implements JsonRpcConfigurer {
   }
 
   @Bean
-  public KurentoClient kurentoClient() {
-    return KurentoClient.create();
+  public KurentoClientPool kurentoClientPool() {
+    return new KurentoClientPool();
   }
 
   @Override
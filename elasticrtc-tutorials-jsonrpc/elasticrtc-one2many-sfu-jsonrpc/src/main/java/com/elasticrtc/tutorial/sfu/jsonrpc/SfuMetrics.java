@@ -0,0 +1,110 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Metrics of one of the SFU demos, registered in the global Micrometer registry and tagged with
+ * the demo name.
+ * <ul>
+ * <li>{@code sfu.operation}: latency of every media server operation, tagged with the operation
+ * name (createSession, processOffer, generateOffer, processAnswer, addIceCandidate).</li>
+ * <li>{@code sfu.ice.candidates}: ICE candidates received from clients ({@code direction=in}) and
+ * sent to them ({@code direction=out}).</li>
+ * <li>{@code sfu.sessions}, {@code sfu.viewers} and {@code sfu.pipelines}: gauges registered by
+ * each handler. The viewers per pipeline are {@code sfu.viewers / sfu.pipelines}.</li>
+ * </ul>
+ *
+ * @since 6.5.1
+ */
+public class SfuMetrics {
+
+  public static final String CREATE_SESSION = "createSession";
+  public static final String PROCESS_OFFER = "processOffer";
+  public static final String GENERATE_OFFER = "generateOffer";
+  public static final String PROCESS_ANSWER = "processAnswer";
+  public static final String ADD_ICE_CANDIDATE = "addIceCandidate";
+
+  private final String demo;
+  private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+  private final Counter candidatesIn;
+  private final Counter candidatesOut;
+
+  public SfuMetrics(String demo) {
+    this.demo = demo;
+    this.candidatesIn = Metrics.counter("sfu.ice.candidates", "demo", demo, "direction", "in");
+    this.candidatesOut = Metrics.counter("sfu.ice.candidates", "demo", demo, "direction", "out");
+  }
+
+  public <T> T time(String operation, Supplier<T> call) {
+    long start = System.nanoTime();
+    try {
+      return call.get();
+    } finally {
+      stop(operation, start);
+    }
+  }
+
+  public void time(String operation, Runnable call) {
+    long start = System.nanoTime();
+    try {
+      call.run();
+    } finally {
+      stop(operation, start);
+    }
+  }
+
+  /**
+   * Measures an asynchronous operation, from the moment it is issued until the returned future
+   * completes.
+   */
+  public <T> CompletableFuture<T> timeAsync(String operation,
+      Supplier<CompletableFuture<T>> call) {
+    long start = System.nanoTime();
+    return call.get().whenComplete((result, error) -> stop(operation, start));
+  }
+
+  public void candidateReceived() {
+    candidatesIn.increment();
+  }
+
+  public void candidateSent() {
+    candidatesOut.increment();
+  }
+
+  public <T> void gauge(String name, T state, ToDoubleFunction<T> value) {
+    Gauge.builder(name, state, value).tags("demo", demo).register(Metrics.globalRegistry);
+  }
+
+  private void stop(String operation, long start) {
+    timers.computeIfAbsent(operation, op -> Timer.builder("sfu.operation")
+        .tags("demo", demo, "operation", op).publishPercentileHistogram()
+        .register(Metrics.globalRegistry))
+        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+  }
+
+}
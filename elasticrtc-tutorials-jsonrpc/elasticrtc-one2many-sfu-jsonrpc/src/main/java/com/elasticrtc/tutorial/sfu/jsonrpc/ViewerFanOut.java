@@ -0,0 +1,107 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Runs per-viewer work, such as renegotiation offers, on a pool of at most
+ * {@code sfu.fanout.concurrency} threads, so the request that triggered it does not wait for
+ * every viewer. A task failing for one viewer is logged and does not affect the others.
+ *
+ * @since 6.5.1
+ */
+public class ViewerFanOut {
+
+  private static final Logger log = LoggerFactory.getLogger(ViewerFanOut.class);
+
+  @Value("${sfu.fanout.concurrency:8}")
+  private int concurrency;
+
+  private ExecutorService executor;
+
+  private final Counter failures = Metrics.counter("sfu.fanout.failures");
+
+  private final Timer duration = Timer.builder("sfu.fanout.duration")
+      .description("Time to run a task for every viewer").register(Metrics.globalRegistry);
+
+  @PostConstruct
+  public void start() {
+    executor = Executors.newFixedThreadPool(concurrency);
+  }
+
+  @PreDestroy
+  public void stop() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Runs the task for every target.
+   *
+   * @return a future completed when the task has finished for every target, whether it
+   *         succeeded or not
+   */
+  public <T> CompletableFuture<Void> forEach(Collection<T> targets, Consumer<T> task) {
+    long start = System.nanoTime();
+    List<CompletableFuture<Void>> tasks = new ArrayList<>(targets.size());
+
+    for (T target : targets) {
+      tasks.add(CompletableFuture.runAsync(() -> run(target, task), executor));
+    }
+    return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()]))
+        .whenComplete((result, error) -> duration.record(System.nanoTime() - start,
+            TimeUnit.NANOSECONDS));
+  }
+
+  public void execute(Runnable task) {
+    executor.execute(() -> {
+      try {
+        task.run();
+      } catch (Exception e) {
+        failures.increment();
+        log.warn("Task failed: {}", e.getMessage(), e);
+      }
+    });
+  }
+
+  private <T> void run(T target, Consumer<T> task) {
+    try {
+      task.accept(target);
+    } catch (Exception e) {
+      failures.increment();
+      log.warn("Task failed for {}: {}", target, e.getMessage(), e);
+    }
+  }
+
+}
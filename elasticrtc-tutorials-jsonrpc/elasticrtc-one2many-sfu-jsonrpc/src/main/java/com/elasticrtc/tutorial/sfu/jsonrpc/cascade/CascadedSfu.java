@@ -0,0 +1,228 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.cascade;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.EventListener;
+import org.kurento.client.IceCandidateFoundEvent;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RtpEndpoint;
+import org.kurento.client.WebRtcEndpoint;
+import org.kurento.module.sfu.OnSessionIceCandidateEvent;
+import org.kurento.module.sfu.WebRtcSfu;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.common.MediaServer;
+
+/**
+ * A master {@link WebRtcSfu}, fed by the presenter, plus the relay SFUs created once the master
+ * reaches its viewer threshold, on the media servers chosen by the {@link KurentoClientPool}.
+ * <p>
+ * Each relay lives in its own pipeline and receives the master output through a pair of
+ * {@link RtpEndpoint}s, one in each pipeline. An SFU only forwards the media of its master
+ * session, so in the relay pipeline a {@link WebRtcEndpoint} takes the RTP feed and is negotiated
+ * against a session set as master session of the relay SFU. Relays are released as soon as their
+ * last viewer leaves. This class is not thread safe: handlers call it while holding their own lock.
+ *
+ * @since 6.5.1
+ */
+public class CascadedSfu {
+
+  private static final Logger log = LoggerFactory.getLogger(CascadedSfu.class);
+
+  private final WebRtcSfu master;
+  private final KurentoClientPool kurento;
+  private final int viewerThreshold;
+  private final boolean simulcast;
+  private final EventListener<OnSessionIceCandidateEvent> candidateListener;
+
+  private final Relay masterNode;
+  private final List<Relay> relays = new ArrayList<>();
+
+  private class Relay {
+    final WebRtcSfu sfu;
+    final MediaPipeline pipeline;
+    final RtpEndpoint masterSide;
+    int viewers;
+
+    Relay(WebRtcSfu sfu, MediaPipeline pipeline, RtpEndpoint masterSide) {
+      this.sfu = sfu;
+      this.pipeline = pipeline;
+      this.masterSide = masterSide;
+    }
+  }
+
+  CascadedSfu(WebRtcSfu master, KurentoClientPool kurento, int viewerThreshold,
+      boolean simulcast, EventListener<OnSessionIceCandidateEvent> candidateListener) {
+    this.master = master;
+    this.kurento = kurento;
+    this.viewerThreshold = viewerThreshold;
+    this.simulcast = simulcast;
+    this.candidateListener = candidateListener;
+    this.masterNode = new Relay(master, null, null);
+  }
+
+  public WebRtcSfu getMaster() {
+    return master;
+  }
+
+  /**
+   * Chooses the SFU a new viewer has to be connected to, creating a new relay if the master and
+   * every existing relay are full.
+   */
+  public WebRtcSfu placeViewer() {
+    Relay target = null;
+    if (kurento.getServers().size() < 2 || masterNode.viewers < viewerThreshold) {
+      target = masterNode;
+    } else {
+      for (Relay relay : relays) {
+        if (relay.viewers < viewerThreshold) {
+          target = relay;
+          break;
+        }
+      }
+      if (target == null) {
+        target = createRelay();
+      }
+    }
+    target.viewers++;
+    return target.sfu;
+  }
+
+  /**
+   * Frees the slot taken by a viewer in the given SFU. Relays left without viewers are released.
+   */
+  public void releaseViewer(WebRtcSfu sfu) {
+    if (sfu == master) {
+      masterNode.viewers--;
+      return;
+    }
+
+    for (Relay relay : relays) {
+      if (relay.sfu == sfu) {
+        if (--relay.viewers == 0) {
+          relays.remove(relay);
+          releaseRelay(relay);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Releases every relay. The master SFU belongs to the caller.
+   */
+  public void release() {
+    for (Relay relay : relays) {
+      releaseRelay(relay);
+    }
+    relays.clear();
+  }
+
+  private Relay createRelay() {
+    MediaServer server = kurento.choose(null);
+    MediaPipeline pipeline = kurento.createMediaPipeline(server);
+    RtpEndpoint masterSide = null;
+
+    try {
+      WebRtcSfu sfu = new WebRtcSfu.Builder(pipeline).build();
+      sfu.setSimulcast(simulcast);
+      sfu.setMaxVideoRecvBandwidth(2000);
+      sfu.setMinVideoRecvBandwidth(2000);
+      sfu.addOnSessionIceCandidateListener(candidateListener);
+
+      RtpEndpoint relaySide = new RtpEndpoint.Builder(pipeline).build();
+      masterSide = new RtpEndpoint.Builder(master.getMediaPipeline()).build();
+
+      String sdpOffer = relaySide.generateOffer();
+      String sdpAnswer = masterSide.processOffer(sdpOffer);
+      relaySide.processAnswer(sdpAnswer);
+
+      master.connect(masterSide);
+      feed(sfu, pipeline, relaySide);
+
+      Relay relay = new Relay(sfu, pipeline, masterSide);
+      relays.add(relay);
+      log.info("Created relay SFU #{} for {} on {}", relays.size(), master.getId(), server);
+      return relay;
+    } catch (RuntimeException e) {
+      if (masterSide != null) {
+        masterSide.release();
+      }
+      pipeline.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Feeds the RTP received from the master into a new master session of the relay SFU, through a
+   * WebRTC endpoint in the relay pipeline. Both ends exchange their candidates locally.
+   */
+  private void feed(final WebRtcSfu sfu, MediaPipeline pipeline, RtpEndpoint relaySide) {
+    final WebRtcEndpoint feeder = new WebRtcEndpoint.Builder(pipeline).build();
+    relaySide.connect(feeder);
+
+    final String sessionId = sfu.createSession();
+    sfu.setMasterSession(sessionId);
+    sfu.addOnSessionIceCandidateListener(new EventListener<OnSessionIceCandidateEvent>() {
+      @Override
+      public void onEvent(OnSessionIceCandidateEvent event) {
+        if (sessionId.equals(event.getSessionId())) {
+          feeder.addIceCandidate(event.getCandidate(), logging("feeder candidate"));
+        }
+      }
+    });
+    feeder.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
+      @Override
+      public void onEvent(IceCandidateFoundEvent event) {
+        sfu.addIceCandidate(sessionId, event.getCandidate(), logging("master session candidate"));
+      }
+    });
+
+    String sdpOffer = feeder.generateOffer();
+    String sdpAnswer = sfu.processOffer(sessionId, sdpOffer);
+    feeder.processAnswer(sdpAnswer);
+    feeder.gatherCandidates();
+  }
+
+  private static Continuation<Void> logging(final String operation) {
+    return new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) {
+      }
+
+      @Override
+      public void onError(Throwable cause) {
+        log.warn("Error adding relay {}: {}", operation, cause.getMessage());
+      }
+    };
+  }
+
+  private void releaseRelay(Relay relay) {
+    try {
+      relay.masterSide.release();
+      relay.pipeline.release();
+    } catch (Exception e) {
+      log.warn("Error releasing relay SFU: {}", e.getMessage());
+    }
+  }
+
+}
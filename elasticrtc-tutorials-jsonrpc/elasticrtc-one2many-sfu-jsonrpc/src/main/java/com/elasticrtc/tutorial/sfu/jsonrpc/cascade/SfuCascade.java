@@ -0,0 +1,46 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.cascade;
+
+import org.kurento.client.EventListener;
+import org.kurento.module.sfu.OnSessionIceCandidateEvent;
+import org.kurento.module.sfu.WebRtcSfu;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+
+/**
+ * Creates {@link CascadedSfu}s relaying to the media servers of the {@link KurentoClientPool},
+ * which places each relay as it places any other pipeline. If the pool has a single media server,
+ * every viewer is served by the master SFU, as before.
+ *
+ * @since 6.5.1
+ */
+public class SfuCascade {
+
+  @Autowired
+  private KurentoClientPool kurento;
+
+  @Value("${sfu.cascade.viewerThreshold:50}")
+  private int viewerThreshold;
+
+  public CascadedSfu create(WebRtcSfu master, boolean simulcast,
+      EventListener<OnSessionIceCandidateEvent> candidateListener) {
+    return new CascadedSfu(master, kurento, viewerThreshold, simulcast, candidateListener);
+  }
+
+}
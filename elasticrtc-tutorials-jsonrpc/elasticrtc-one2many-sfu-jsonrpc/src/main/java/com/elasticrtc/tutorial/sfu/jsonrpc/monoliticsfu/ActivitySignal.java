@@ -0,0 +1,39 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.monoliticsfu;
+
+/**
+ * Source of activity events, such as voice activity detected by the media server, used to pick
+ * the participants whose video is forwarded in Last-N mode. Besides the registered signals,
+ * clients can report that their user is speaking with the {@code speaking} method.
+ *
+ * @since 6.5.1
+ */
+public interface ActivitySignal {
+
+  /**
+   * Starts watching a participant.
+   *
+   * @param user
+   *          the participant
+   * @param onActivity
+   *          to be run every time the participant is active
+   */
+  void watch(UserSession user, Runnable onActivity);
+
+  void unwatch(UserSession user);
+
+}
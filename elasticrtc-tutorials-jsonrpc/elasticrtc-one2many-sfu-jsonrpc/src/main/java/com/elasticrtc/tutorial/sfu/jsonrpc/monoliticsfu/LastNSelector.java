@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.monoliticsfu;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+/**
+ * Keeps the participants ordered by their last activity, and selects the {@code lastN} most
+ * recently active ones as the senders whose video is forwarded. New participants are appended as
+ * the least recently active ones, so they only get a slot if there is a free one. A non positive
+ * {@code lastN} selects everybody.
+ * <p>
+ * Not thread safe: the handler calls it while holding its own lock.
+ *
+ * @since 6.5.1
+ */
+class LastNSelector {
+
+  private final int lastN;
+
+  /** Most recently active first. */
+  private final LinkedList<UserSession> recency = new LinkedList<>();
+
+  LastNSelector(int lastN) {
+    this.lastN = lastN;
+  }
+
+  public boolean isSelected(UserSession user) {
+    if (lastN <= 0) {
+      return true;
+    }
+    int index = recency.indexOf(user);
+    return index >= 0 && index < lastN;
+  }
+
+  /**
+   * @return the participants that have been selected or deselected
+   */
+  public Set<UserSession> add(UserSession user) {
+    Set<UserSession> before = selected();
+    if (!recency.contains(user)) {
+      recency.addLast(user);
+    }
+    return changes(before);
+  }
+
+  /**
+   * Moves a participant to the front, after some activity has been detected.
+   *
+   * @return the participants that have been selected or deselected
+   */
+  public Set<UserSession> activity(UserSession user) {
+    Set<UserSession> before = selected();
+    if (recency.remove(user)) {
+      recency.addFirst(user);
+    }
+    return changes(before);
+  }
+
+  /**
+   * @return the participants that have been selected or deselected
+   */
+  public Set<UserSession> remove(UserSession user) {
+    Set<UserSession> before = selected();
+    recency.remove(user);
+    Set<UserSession> changes = changes(before);
+    changes.remove(user);
+    return changes;
+  }
+
+  private Set<UserSession> selected() {
+    if (lastN <= 0) {
+      return new HashSet<>(recency);
+    }
+    return new HashSet<>(recency.subList(0, Math.min(lastN, recency.size())));
+  }
+
+  private Set<UserSession> changes(Set<UserSession> before) {
+    Set<UserSession> after = selected();
+    Set<UserSession> changes = new HashSet<>(before);
+    changes.addAll(after);
+
+    before.retainAll(after);
+    changes.removeAll(before);
+    return changes;
+  }
+
+}
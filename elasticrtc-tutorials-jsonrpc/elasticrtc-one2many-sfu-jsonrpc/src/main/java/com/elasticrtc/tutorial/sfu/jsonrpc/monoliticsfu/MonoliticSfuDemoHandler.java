@@ -16,12 +16,15 @@
 package com.elasticrtc.tutorial.sfu.jsonrpc.monoliticsfu;
 
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Named;
 
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.jsonrpc.JsonRpcMethod;
 import org.kurento.jsonrpc.Session;
@@ -31,7 +34,11 @@ import org.kurento.module.sfu.RTCPeerConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.sfu.jsonrpc.RenegotiationScheduler;
+import com.elasticrtc.tutorial.sfu.jsonrpc.SfuMetrics;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
@@ -52,7 +59,21 @@ public class MonoliticSfuDemoHandler extends TypeDefaultJsonRpcHandler {
       new ConcurrentHashMap<>();
 
   @Autowired
-  private KurentoClient kurento;
+  private KurentoClientPool kurento;
+
+  @Autowired
+  private RenegotiationScheduler renegotiationScheduler;
+
+  /** Participants whose video is forwarded, or 0 to forward everybody. */
+  @Value("${sfu.monolitic.lastN:0}")
+  private int lastN;
+
+  @Autowired(required = false)
+  private List<ActivitySignal> activitySignals = Collections.emptyList();
+
+  private LastNSelector speakers;
+
+  private final RoomGraph room = new RoomGraph(user -> speakers.isSelected(user));
 
   private MediaPipeline pipeline;
 
@@ -62,11 +83,23 @@ public class MonoliticSfuDemoHandler extends TypeDefaultJsonRpcHandler {
     public String message;
   }
 
+  public MonoliticSfuDemoHandler() {
+    UserSession.metrics.gauge("sfu.sessions", clients, Map::size);
+    // every participant receives the media of the others
+    UserSession.metrics.gauge("sfu.viewers", clients, Map::size);
+    UserSession.metrics.gauge("sfu.pipelines", this, handler -> handler.pipeline != null ? 1 : 0);
+  }
+
   public class NegotiationResponse {
     public String sdpOffer;
     public String sdpAnswer;
   }
 
+  @PostConstruct
+  public void init() {
+    speakers = new LastNSelector(lastN);
+  }
+
   /**
    * Method invoked by clients sending ice candidates to the server.
    *
@@ -87,31 +120,6 @@ public class MonoliticSfuDemoHandler extends TypeDefaultJsonRpcHandler {
 
   }
 
-  public void connectOneToMany(UserSession user) {
-
-    Iterator<String> it = clients.keySet().iterator();
-    while (it.hasNext()) {
-      String key = it.next();
-      UserSession existingUser = clients.get(key);
-
-      if (user != existingUser) {
-        user.connect(existingUser);
-      }
-    }
-  }
-
-  public void connectManyToOne(UserSession user) {
-    Iterator<String> it = clients.keySet().iterator();
-    while (it.hasNext()) {
-      String key = it.next();
-      UserSession existingUser = clients.get(key);
-
-      if (user != existingUser) {
-        existingUser.connect(user);
-      }
-    }
-  }
-
   /**
    * Method invoked by a client connecting to the server. The first client to invoke this method
    * will be considered the presenter.
@@ -132,39 +140,61 @@ public class MonoliticSfuDemoHandler extends TypeDefaultJsonRpcHandler {
       pipeline = kurento.createMediaPipeline();
     }
 
-    RTCPeerConnection pc = new RTCPeerConnection.Builder(pipeline).build();
+    RTCPeerConnection pc = UserSession.metrics.time(SfuMetrics.CREATE_SESSION,
+        () -> new RTCPeerConnection.Builder(pipeline).build());
 
     candidateManagers.put(pc.getId(), new CandidateManager(session));
     pc.addNewIceCandidateListener(
-        event -> candidateManagers.get(event.getSource()).manageCandidate(event.getCandidate()));
+        event -> candidateManagers.get(event.getSource().getId())
+            .manageCandidate(event.getCandidate()));
     user.setEndpoint(pc);
 
     clients.put(session.getSessionId(), user);
+    for (ActivitySignal signal : activitySignals) {
+      signal.watch(user, () -> activity(user));
+    }
 
     return response;
   }
 
+  /**
+   * Connects a user with the rest of the room. Only the tracks missing in each direction are
+   * added, and only the users that received new tracks are renegotiated.
+   *
+   * @param session
+   *          the client session
+   */
   @JsonRpcMethod
-  public synchronized void connectUsers(@Named final Session session) throws Exception {
+  public synchronized void connectUsers(@Named final Session session) {
     UserSession user = clients.get(session.getSessionId());
-    // connect the other users to the new user
-    connectManyToOne(user);
-    // connect the new user to the other users
-    connectOneToMany(user);
-
-    Iterator<String> it = clients.keySet().iterator();
-    while (it.hasNext()) {
-      String key = it.next();
-      UserSession existingUser = clients.get(key);
-      if (existingUser.isNegotiationNeeded()) {
-        String sdpOffer = existingUser.generateOffer();
-        try {
-          existingUser.getSession().sendNotification("viewerNegotiation", sdpOffer);
-        } catch (IOException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
-        }
-      }
+    speakers.add(user);
+    renegotiate(room.connect(user));
+  }
+
+  /**
+   * Method invoked by clients when their user starts speaking. In Last-N mode, the video of the
+   * user is forwarded to the rest of the room if it was not already.
+   *
+   * @param session
+   *          the client session
+   */
+  @JsonRpcMethod
+  public void speaking(@Named final Session session) {
+    UserSession user = clients.get(session.getSessionId());
+    if (user != null) {
+      activity(user);
+    }
+  }
+
+  private synchronized void activity(UserSession user) {
+    if (clients.get(user.getSession().getSessionId()) != user) {
+      return;
+    }
+    Set<UserSession> changed = speakers.activity(user);
+    if (!changed.isEmpty()) {
+      log.debug("Forwarded video senders changed: {}", changed.size());
+      // the scheduler debounce turns the swaps of each receiver into a single renegotiation
+      renegotiate(room.update(changed));
     }
   }
 
@@ -176,28 +206,42 @@ public class MonoliticSfuDemoHandler extends TypeDefaultJsonRpcHandler {
     UserSession user = clients.get(session.getSessionId());
 
     if (sdpOffer == null) {
-      response.sdpOffer = user.generateOffer();
+      response.sdpOffer = renegotiationScheduler.negotiate(user, true, user::generateOffer);
       log.debug("Generated viewer SDP offer:\n{}", response.sdpOffer);
     } else {
-      response.sdpAnswer = user.processOffer(sdpOffer);
+      response.sdpAnswer = renegotiationScheduler.negotiate(user, false,
+          () -> user.processOffer(sdpOffer));
       log.debug("Processed presenter SDP offer:\n{}\nOur SDP answer:\n{}", sdpOffer,
           response.sdpAnswer);
 
-      for (UserSession sessUser : clients.values()) {
-        if (user.equals(sessUser)) {
-          continue;
-        }
+      renegotiate(room.publish(user));
+    }
+    return response;
+  }
 
-        if (sessUser.isNegotiationNeeded()) {
-          String viewerSdpOffer = sessUser.generateOffer();
+  private void renegotiate(Set<UserSession> users) {
+    for (UserSession user : users) {
+      renegotiationScheduler.request(user, () -> sendOffer(user));
+    }
+  }
 
-          log.debug("Negotiate viewer with SDP offer:\n{}", viewerSdpOffer);
+  private boolean sendOffer(UserSession user) {
+    if (clients.get(user.getSession().getSessionId()) != user) {
+      return false;
+    }
+    String sdpOffer = user.generateOffer();
+    log.debug("Negotiate viewer with SDP offer:\n{}", sdpOffer);
 
-          sessUser.getSession().sendNotification("viewerNegotiation", viewerSdpOffer);
-        }
+    try {
+      synchronized (user.getSession()) {
+        user.getSession().sendNotification("viewerNegotiation", sdpOffer);
       }
+      return true;
+    } catch (IOException e) {
+      log.warn("Could not send SDP offer to {}: {}", user.getSession().getSessionId(),
+          e.getMessage());
+      return false;
     }
-    return response;
   }
 
   /**
@@ -213,6 +257,7 @@ public class MonoliticSfuDemoHandler extends TypeDefaultJsonRpcHandler {
 
     UserSession viewer = clients.get(session.getSessionId());
     viewer.processAnswer(sdpAnswer);
+    renegotiationScheduler.answered(viewer);
     log.debug("Processed answer :\n", sdpAnswer);
 
     log.debug("Processed viewer SDP answer:\n{}", sdpAnswer);
@@ -223,6 +268,13 @@ public class MonoliticSfuDemoHandler extends TypeDefaultJsonRpcHandler {
     UserSession user = clients.remove(session.getSessionId());
 
     if (user != null) {
+      for (ActivitySignal signal : activitySignals) {
+        signal.unwatch(user);
+      }
+      room.remove(user);
+      renegotiate(room.update(speakers.remove(user)));
+      renegotiationScheduler.cancel(user);
+      candidateManagers.remove(user.getEndpoint().getId());
       user.release(true);
     }
 
@@ -247,6 +299,7 @@ public class MonoliticSfuDemoHandler extends TypeDefaultJsonRpcHandler {
     }
 
     public void manageCandidate(RTCIceCandidate candidate) {
+      UserSession.metrics.candidateSent();
 
       try {
         synchronized (session) {
@@ -0,0 +1,173 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.monoliticsfu;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.kurento.module.sfu.MediaStreamTrack;
+import org.kurento.module.sfu.RTCRtpSender;
+
+/**
+ * Which tracks of each participant have already been added to the peer connection of every other
+ * participant.
+ * <p>
+ * The tracks published by a participant are read from the media server once per negotiation and
+ * cached, so connecting a new participant only adds the tracks missing in each direction, and
+ * only the participants that got new tracks need to be renegotiated. Video tracks are only
+ * forwarded from the participants accepted by the video filter, which implements Last-N; audio
+ * is always forwarded.
+ * <p>
+ * Every participant knows both the participants it sends to and the ones it receives from, so
+ * removing a participant only touches its own edges. Not thread safe: the handler calls it while
+ * holding its own lock.
+ *
+ * @since 6.5.1
+ */
+class RoomGraph {
+
+  private static class Node {
+    final UserSession user;
+
+    /** Senders of the tracks of this participant already added to each sink, by track id. */
+    final Map<Node, Map<String, RTCRtpSender>> sinks = new HashMap<>();
+
+    final Set<Node> sources = new HashSet<>();
+
+    Node(UserSession user) {
+      this.user = user;
+    }
+  }
+
+  private final Map<UserSession, Node> nodes = new LinkedHashMap<>();
+
+  private final Predicate<UserSession> forwardsVideo;
+
+  RoomGraph(Predicate<UserSession> forwardsVideo) {
+    this.forwardsVideo = forwardsVideo;
+  }
+
+  /**
+   * Connects a participant with everybody else in the room, in both directions.
+   *
+   * @return the participants whose peer connection got new tracks and needs renegotiation
+   */
+  public Set<UserSession> connect(UserSession user) {
+    Set<UserSession> affected = new LinkedHashSet<>();
+    Node node = nodes.computeIfAbsent(user, Node::new);
+
+    for (Node other : nodes.values()) {
+      if (other == node) {
+        continue;
+      }
+      link(other, node);
+      link(node, other);
+
+      if (forward(other, node)) {
+        affected.add(user);
+      }
+      if (forward(node, other)) {
+        affected.add(other.user);
+      }
+    }
+    return affected;
+  }
+
+  /**
+   * Forwards the tracks a connected participant has just started publishing, after negotiating a
+   * new offer of its own.
+   *
+   * @return the participants whose peer connection got new tracks and needs renegotiation
+   */
+  public Set<UserSession> publish(UserSession user) {
+    user.refreshPublishedTracks();
+    Node node = nodes.get(user);
+    return node != null ? forwardToSinks(node) : new LinkedHashSet<>();
+  }
+
+  /**
+   * Adds or removes the video tracks of the given sources, after the video filter has changed its
+   * decision about them.
+   *
+   * @return the participants whose peer connection has changed and needs renegotiation
+   */
+  public Set<UserSession> update(Collection<UserSession> sources) {
+    Set<UserSession> affected = new LinkedHashSet<>();
+
+    for (UserSession source : sources) {
+      Node node = nodes.get(source);
+      if (node != null) {
+        affected.addAll(forwardToSinks(node));
+      }
+    }
+    return affected;
+  }
+
+  public void remove(UserSession user) {
+    Node node = nodes.remove(user);
+    if (node == null) {
+      return;
+    }
+    for (Node source : node.sources) {
+      source.sinks.remove(node);
+    }
+    for (Node sink : node.sinks.keySet()) {
+      sink.sources.remove(node);
+    }
+  }
+
+  private void link(Node source, Node sink) {
+    source.sinks.putIfAbsent(sink, new HashMap<>());
+    sink.sources.add(source);
+  }
+
+  private Set<UserSession> forwardToSinks(Node source) {
+    Set<UserSession> affected = new LinkedHashSet<>();
+    for (Node sink : source.sinks.keySet()) {
+      if (forward(source, sink)) {
+        affected.add(sink.user);
+      }
+    }
+    return affected;
+  }
+
+  private boolean forward(Node source, Node sink) {
+    Map<String, RTCRtpSender> senders = source.sinks.get(sink);
+    boolean video = forwardsVideo.test(source.user);
+    boolean changed = false;
+
+    for (MediaStreamTrack track : source.user.getPublishedTracks()) {
+      boolean wanted = video || !"video".equals(track.getKind());
+      RTCRtpSender sender = senders.get(track.getId());
+
+      if (wanted && sender == null) {
+        senders.put(track.getId(), sink.user.addTrack(track, source.user.getPublishedStreams()));
+        changed = true;
+      } else if (!wanted && sender != null) {
+        sink.user.removeTrack(senders.remove(track.getId()));
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+}
@@ -16,6 +16,7 @@
 package com.elasticrtc.tutorial.sfu.jsonrpc.monoliticsfu;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.kurento.jsonrpc.Session;
@@ -24,22 +25,30 @@ import org.kurento.module.sfu.MediaStreamTrack;
 import org.kurento.module.sfu.RTCIceCandidate;
 import org.kurento.module.sfu.RTCPeerConnection;
 import org.kurento.module.sfu.RTCRtpReceiver;
+import org.kurento.module.sfu.RTCRtpSender;
 import org.kurento.module.sfu.RTCSdpType;
 import org.kurento.module.sfu.RTCSessionDescription;
 
+import com.elasticrtc.tutorial.sfu.jsonrpc.SfuMetrics;
 import com.google.common.base.Objects;
 
 /**
  * User session.
+ * <p>
+ * Every SDP and track operation on the peer connection holds the lock of the session, so offers
+ * generated on the fan-out pool never interleave with the ones done by the handler.
  *
  * @author Ivan Gracia (igracia@kurento.org)
  * @since 6.2.1
  */
 public class UserSession {
 
+  static final SfuMetrics metrics = new SfuMetrics("monoliticsfu");
+
   private final Session session;
   private RTCPeerConnection pc;
-  private final List<RTCPeerConnection> connectedPeers = new ArrayList<RTCPeerConnection>();
+  private List<MediaStreamTrack> publishedTracks = Collections.emptyList();
+  private List<MediaStream> publishedStreams = Collections.emptyList();
 
   public UserSession(Session session) {
     this.session = session;
@@ -58,34 +67,36 @@ public class UserSession {
   }
 
   public void addCandidate(RTCIceCandidate candidate) {
-    pc.addIceCandidate(candidate);
+    metrics.candidateReceived();
+    metrics.time(SfuMetrics.ADD_ICE_CANDIDATE, () -> pc.addIceCandidate(candidate));
   }
 
   public void release(boolean isPresenter) {
     this.pc.release();
   }
 
-  public boolean isNegotiationNeeded() {
-    return pc.getNegotiationNeeded();
-  }
-
-  public void processAnswer(String sdpAnswer) {
-    pc.setRemoteDescription(new RTCSessionDescription(RTCSdpType.ANSWER, sdpAnswer));
+  public synchronized void processAnswer(String sdpAnswer) {
+    metrics.time(SfuMetrics.PROCESS_ANSWER, () -> pc.setRemoteDescription(
+        new RTCSessionDescription(RTCSdpType.ANSWER, sdpAnswer)));
   }
 
-  public String processOffer(String sdpOffer) {
-    pc.setRemoteDescription(new RTCSessionDescription(RTCSdpType.OFFER, sdpOffer));
-    RTCSessionDescription answer = pc.createAnswer();
-    pc.setLocalDescription(answer);
+  public synchronized String processOffer(String sdpOffer) {
+    return metrics.time(SfuMetrics.PROCESS_OFFER, () -> {
+      pc.setRemoteDescription(new RTCSessionDescription(RTCSdpType.OFFER, sdpOffer));
+      RTCSessionDescription answer = pc.createAnswer();
+      pc.setLocalDescription(answer);
 
-    return answer.getSdp();
+      return answer.getSdp();
+    });
   }
 
-  public String generateOffer() {
-    RTCSessionDescription offer = pc.createOffer();
-    pc.setLocalDescription(offer);
+  public synchronized String generateOffer() {
+    return metrics.time(SfuMetrics.GENERATE_OFFER, () -> {
+      RTCSessionDescription offer = pc.createOffer();
+      pc.setLocalDescription(offer);
 
-    return offer.getSdp();
+      return offer.getSdp();
+    });
   }
 
   @Override
@@ -101,15 +112,33 @@ public class UserSession {
     return Objects.equal(((UserSession) obj).session.getSessionId(), this.session.getSessionId());
   }
 
-  public void connect(UserSession user) {
-    List<RTCRtpReceiver> receivers = pc.getReceivers();
-    connectedPeers.add(user.pc);
+  public List<MediaStreamTrack> getPublishedTracks() {
+    return publishedTracks;
+  }
+
+  public List<MediaStream> getPublishedStreams() {
+    return publishedStreams;
+  }
 
-    List<MediaStream> streams = pc.getRemoteMediaStreams();
-    for (RTCRtpReceiver receiver : receivers) {
-      MediaStreamTrack track = receiver.getTrack();
-      user.pc.addTrack(track, streams);
+  /**
+   * Reads the tracks this user sends from the media server. Called after each negotiation started
+   * by the user, so the rest of the room works with the cached tracks.
+   */
+  public synchronized void refreshPublishedTracks() {
+    List<MediaStreamTrack> tracks = new ArrayList<>();
+    for (RTCRtpReceiver receiver : pc.getReceivers()) {
+      tracks.add(receiver.getTrack());
     }
+    publishedTracks = tracks;
+    publishedStreams = pc.getRemoteMediaStreams();
+  }
+
+  public synchronized RTCRtpSender addTrack(MediaStreamTrack track, List<MediaStream> streams) {
+    return pc.addTrack(track, streams);
+  }
+
+  public synchronized void removeTrack(RTCRtpSender sender) {
+    pc.removeTrack(sender);
   }
 
 }
@@ -16,16 +16,15 @@
 package com.elasticrtc.tutorial.sfu.jsonrpc.multibrowser;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Named;
 
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.MediaProfileSpecType;
-import org.kurento.client.RecorderEndpoint;
 import org.kurento.jsonrpc.JsonRpcMethod;
 import org.kurento.jsonrpc.Session;
 import org.kurento.jsonrpc.TypeDefaultJsonRpcHandler;
@@ -35,6 +34,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.elasticrtc.tutorial.common.KeyframeMonitor;
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.sfu.jsonrpc.SfuMetrics;
+import com.elasticrtc.tutorial.sfu.jsonrpc.cascade.CascadedSfu;
+import com.elasticrtc.tutorial.sfu.jsonrpc.cascade.SfuCascade;
+import com.elasticrtc.tutorial.sfu.jsonrpc.recording.SegmentedRecorder;
+import com.elasticrtc.tutorial.sfu.jsonrpc.recording.SegmentedRecorderFactory;
 import com.google.common.base.Strings;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -49,14 +55,38 @@ public class SfuMultibrowserDemoHandler extends TypeDefaultJsonRpcHandler {
 
   private static final Logger log = LoggerFactory.getLogger(SfuMultibrowserDemoHandler.class);
   private static final Gson gson = new GsonBuilder().create();
+  private static final String PRESENTER_ID = "multibrowser";
 
   private final ConcurrentHashMap<String, UserSession> clients = new ConcurrentHashMap<>();
   private final ConcurrentHashMap<String, CandidateManager> candidateManagers = new ConcurrentHashMap<>();
 
-  private RecorderEndpoint recorder;
+  private SegmentedRecorder recorder;
 
   @Autowired
-  private KurentoClient kurento;
+  private KurentoClientPool kurento;
+
+  @Autowired
+  private SegmentedRecorderFactory recorderFactory;
+
+  @Autowired
+  private SfuCascade sfuCascade;
+
+  @Autowired
+  private KeyframeMonitor keyframes;
+
+  private CascadedSfu cascade;
+
+  private final EventListener<OnSessionIceCandidateEvent> candidateListener =
+      new EventListener<OnSessionIceCandidateEvent>() {
+        @Override
+        public void onEvent(OnSessionIceCandidateEvent event) {
+          CandidateManager manager = candidateManagers.get(event.getSessionId());
+          // the master sessions of relay SFUs exchange their candidates in the cascade
+          if (manager != null) {
+            manager.manageCandidate(event.getCandidate());
+          }
+        }
+      };
 
   private MediaPipeline pipeline;
   private UserSession presenter;
@@ -67,6 +97,13 @@ public class SfuMultibrowserDemoHandler extends TypeDefaultJsonRpcHandler {
     public String message;
   }
 
+  public SfuMultibrowserDemoHandler() {
+    UserSession.metrics.gauge("sfu.sessions", clients, Map::size);
+    UserSession.metrics.gauge("sfu.viewers", this,
+        handler -> handler.clients.size() - (handler.presenter != null ? 1 : 0));
+    UserSession.metrics.gauge("sfu.pipelines", this, handler -> handler.pipeline != null ? 1 : 0);
+  }
+
   public class NegotiationResponse {
     public String sdp;
   }
@@ -85,7 +122,7 @@ public class SfuMultibrowserDemoHandler extends TypeDefaultJsonRpcHandler {
 
     if ((user != null) && (presenter != null)) {
       IceCandidate cand = gson.fromJson(candidate, IceCandidate.class);
-      presenter.addCandidate(user, cand);
+      user.addCandidate(cand);
     }
 
   }
@@ -120,20 +157,18 @@ public class SfuMultibrowserDemoHandler extends TypeDefaultJsonRpcHandler {
       sfu.setSimulcast(simulcast);
       sfu.setMaxVideoRecvBandwidth(2000);
       sfu.setMinVideoRecvBandwidth(2000);
-      sfu.addOnSessionIceCandidateListener(new EventListener<OnSessionIceCandidateEvent>() {
-        @Override
-        public void onEvent(OnSessionIceCandidateEvent event) {
-          candidateManagers.get(event.getSessionId()).manageCandidate(event.getCandidate());
-        }
-      });
+      sfu.addOnSessionIceCandidateListener(candidateListener);
       user.setEndpoint(sfu);
+      cascade = sfuCascade.create(sfu, simulcast, candidateListener);
 
-      sfuSessionId = sfu.createSession();
+      sfuSessionId = UserSession.metrics.time(SfuMetrics.CREATE_SESSION, () -> sfu.createSession());
       sfu.setMasterSession(sfuSessionId);
+      keyframes.watch(PRESENTER_ID, sfu);
 
     } else {
-      user.setEndpoint(presenter.getEndpoint());
-      sfuSessionId = presenter.getEndpoint().createSession();
+      WebRtcSfu sfu = cascade.placeViewer();
+      user.setEndpoint(sfu);
+      sfuSessionId = UserSession.metrics.time(SfuMetrics.CREATE_SESSION, () -> sfu.createSession());
     }
 
     user.setSfuSessionId(sfuSessionId);
@@ -177,11 +212,19 @@ public class SfuMultibrowserDemoHandler extends TypeDefaultJsonRpcHandler {
     UserSession user = clients.remove(session.getSessionId());
 
     if (user != null) {
+      candidateManagers.remove(user.getSfuSessionId());
       if (user.equals(presenter)) {
-        presenter = null;
+        keyframes.unwatch(PRESENTER_ID);
         stopRecording();
+        user.release(true);
+        presenter = null;
+        cascade.release();
+        cascade = null;
+        dropViewers();
+      } else if (cascade != null) {
+        user.release(false);
+        cascade.releaseViewer(user.getEndpoint());
       }
-      user.release(user.equals(presenter));
     }
 
     if (clients.isEmpty() && (pipeline != null)) {
@@ -191,14 +234,23 @@ public class SfuMultibrowserDemoHandler extends TypeDefaultJsonRpcHandler {
 
   }
 
+  /**
+   * Forgets the SFU sessions of the viewers still registered when the presenter leaves. They lived
+   * in the presenter SFU or in its relays, which are released with it.
+   */
+  private void dropViewers() {
+    for (UserSession viewer : clients.values()) {
+      candidateManagers.remove(viewer.getSfuSessionId());
+      viewer.setEndpoint(null);
+    }
+  }
+
   @JsonRpcMethod
   public synchronized void startRecording(@Named("path") String path,
       @Named("mediaProfile") MediaProfileSpecType mediaProfile) {
     if (recorder == null) {
-      recorder = new RecorderEndpoint.Builder(this.pipeline, path).withMediaProfile(mediaProfile)
-          .build();
-      this.presenter.getEndpoint().connect(recorder);
-      recorder.record();
+      recorder = recorderFactory.record(this.pipeline, this.presenter.getEndpoint(), path,
+          mediaProfile);
     }
   }
 
@@ -206,12 +258,7 @@ public class SfuMultibrowserDemoHandler extends TypeDefaultJsonRpcHandler {
   public synchronized void stopRecording() {
     if (recorder != null) {
       recorder.stop();
-      try {
-        recorder.release();
-        recorder = null;
-      } catch (Exception e) {
-        log.warn("Error releasing recorder endpoint", e);
-      }
+      recorder = null;
     }
   }
 
@@ -229,6 +276,7 @@ public class SfuMultibrowserDemoHandler extends TypeDefaultJsonRpcHandler {
     }
 
     public void manageCandidate(IceCandidate candidate) {
+      UserSession.metrics.candidateSent();
 
       try {
         synchronized (session) {
@@ -19,6 +19,7 @@ import org.kurento.client.IceCandidate;
 import org.kurento.jsonrpc.Session;
 import org.kurento.module.sfu.WebRtcSfu;
 
+import com.elasticrtc.tutorial.sfu.jsonrpc.SfuMetrics;
 import com.google.common.base.Objects;
 
 /**
@@ -29,6 +30,8 @@ import com.google.common.base.Objects;
  */
 public class UserSession {
 
+  static final SfuMetrics metrics = new SfuMetrics("multibrowser");
+
   private final Session session;
   private WebRtcSfu sfu;
   private String sfuSessionId;
@@ -49,12 +52,9 @@ public class UserSession {
     this.sfu = sfu;
   }
 
-  public void addCandidate(UserSession session, IceCandidate candidate) {
-    sfu.addIceCandidate(session.getSfuSessionId(), candidate);
-  }
-
-  private String getSfuSessionId() {
-    return this.sfuSessionId;
+  public void addCandidate(IceCandidate candidate) {
+    metrics.candidateReceived();
+    metrics.time(SfuMetrics.ADD_ICE_CANDIDATE, () -> sfu.addIceCandidate(sfuSessionId, candidate));
   }
 
   public void release(boolean isPresenter) {
@@ -67,20 +67,25 @@ public class UserSession {
     }
   }
 
+  public String getSfuSessionId() {
+    return sfuSessionId;
+  }
+
   public void setSfuSessionId(String sfuSessionId) {
     this.sfuSessionId = sfuSessionId;
   }
 
   public void processAnswer(String sdpAnswer) {
-    this.sfu.processAnswer(sfuSessionId, sdpAnswer);
+    metrics.time(SfuMetrics.PROCESS_ANSWER, () -> this.sfu.processAnswer(sfuSessionId, sdpAnswer));
   }
 
   public String generateOffer() {
-    return this.sfu.generateOffer(sfuSessionId);
+    return metrics.time(SfuMetrics.GENERATE_OFFER, () -> this.sfu.generateOffer(sfuSessionId));
   }
 
   public String processOffer(String sdpOffer) {
-    return this.sfu.processOffer(sfuSessionId, sdpOffer);
+    return metrics.time(SfuMetrics.PROCESS_OFFER,
+        () -> this.sfu.processOffer(sfuSessionId, sdpOffer));
   }
 
   @Override
@@ -0,0 +1,271 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.multisession;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.RTCOutboundRTPStreamStats;
+import org.kurento.client.Stats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Server side bitrate adaptation for the viewers of {@link SfuSession}s.
+ * <p>
+ * Every sampling period, the video statistics of each SFU are fetched and, for every viewer, the
+ * outbound stream sent to it is found by its SSRC. Its REMB estimation and the fraction of lost
+ * packets are compared against the current rung of the bitrate ladder. A viewer steps down after
+ * {@code downSamples} consecutive congested samples and steps up after {@code upSamples}
+ * consecutive samples with enough headroom for the next rung. After stepping down, the viewer is
+ * held for {@code holdMillis} before probing up again, which keeps it from oscillating between two
+ * rungs.
+ *
+ * @since 6.5.1
+ */
+public class AdaptiveBitrateController {
+
+  private static final Logger log = LoggerFactory.getLogger(AdaptiveBitrateController.class);
+
+  /** RTCP receiver reports carry the fraction lost as an 8 bit fixed point number. */
+  private static final double FRACTION_LOST_SCALE = 256;
+
+  @Value("${sfu.abr.enabled:true}")
+  private boolean enabled;
+
+  @Value("${sfu.abr.intervalMillis:2000}")
+  private long intervalMillis;
+
+  @Value("${sfu.abr.ladder:150000,240000,500000,1000000,2000000}")
+  private int[] ladder;
+
+  @Value("${sfu.abr.lossThreshold:0.05}")
+  private double lossThreshold;
+
+  @Value("${sfu.abr.downRatio:0.9}")
+  private double downRatio;
+
+  @Value("${sfu.abr.upRatio:1.15}")
+  private double upRatio;
+
+  @Value("${sfu.abr.downSamples:2}")
+  private int downSamples;
+
+  @Value("${sfu.abr.upSamples:4}")
+  private int upSamples;
+
+  @Value("${sfu.abr.holdMillis:10000}")
+  private long holdMillis;
+
+  private final Map<SfuSession, SessionState> sessions = new ConcurrentHashMap<>();
+
+  private ScheduledExecutorService scheduler;
+
+  enum ViewerPhase {
+    /** No pressure in either direction. */
+    STEADY,
+    /** Congestion has been observed, but not for long enough to step down. */
+    DEGRADING,
+    /** There is headroom for the next rung, but not for long enough to step up. */
+    RECOVERING,
+    /** Recently stepped down; upgrades are not allowed until the hold time expires. */
+    HOLD
+  }
+
+  private class SessionState {
+    final AtomicBoolean sampling = new AtomicBoolean();
+    final Map<String, ViewerState> viewers = new ConcurrentHashMap<>();
+  }
+
+  class ViewerState {
+    ViewerPhase phase = ViewerPhase.STEADY;
+    int level = ladder.length - 1;
+    int samples;
+    long holdUntil;
+  }
+
+  @PostConstruct
+  public void start() {
+    Arrays.sort(ladder);
+    if (enabled) {
+      scheduler = Executors.newSingleThreadScheduledExecutor();
+      scheduler.scheduleWithFixedDelay(this::sample, intervalMillis, intervalMillis,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  public void register(SfuSession sfuSession) {
+    sessions.put(sfuSession, new SessionState());
+  }
+
+  public void unregister(SfuSession sfuSession) {
+    sessions.remove(sfuSession);
+  }
+
+  /**
+   * Switches the quality selected by a viewer. Its adaptation restarts from the bitrate the switch
+   * sets, instead of acting on the rung it was at before.
+   */
+  public CompletableFuture<Void> switchQuality(SfuSession sfuSession, String userId) {
+    return sfuSession.switchQuality(userId).thenRun(() -> {
+      SessionState state = sessions.get(sfuSession);
+      if (state != null) {
+        // a new state starts at the highest rung the selected quality allows
+        state.viewers.remove(userId);
+      }
+    });
+  }
+
+  /**
+   * Highest bitrate a viewer can be driven to, taking into account the quality selected by the
+   * client.
+   */
+  private int maxLevel(SfuSession sfuSession, String userId) {
+    if (sfuSession.isHighQuality(userId)) {
+      return ladder.length - 1;
+    }
+    int level = 0;
+    while (level + 1 < ladder.length && ladder[level + 1] <= SfuSession.LOW_QUALITY_BITRATE) {
+      level++;
+    }
+    return level;
+  }
+
+  private void sample() {
+    for (Map.Entry<SfuSession, SessionState> entry : sessions.entrySet()) {
+      final SfuSession sfuSession = entry.getKey();
+      final SessionState state = entry.getValue();
+
+      if (!state.sampling.compareAndSet(false, true)) {
+        continue;
+      }
+      sfuSession.getVideoStats().whenComplete((stats, error) -> {
+        try {
+          if (error != null) {
+            log.debug("Could not sample stats: {}", error.getMessage());
+          } else {
+            adapt(sfuSession, state, stats);
+          }
+        } finally {
+          state.sampling.set(false);
+        }
+      });
+    }
+  }
+
+  private void adapt(SfuSession sfuSession, SessionState state, Map<String, Stats> stats) {
+    Map<String, Set<String>> viewers = sfuSession.getViewerVideoSsrcs();
+    state.viewers.keySet().retainAll(viewers.keySet());
+
+    for (Map.Entry<String, Set<String>> viewer : viewers.entrySet()) {
+      String userId = viewer.getKey();
+      RTCOutboundRTPStreamStats feedback = findOutboundStats(stats, viewer.getValue());
+      if (feedback == null) {
+        continue;
+      }
+
+      ViewerState viewerState = state.viewers.computeIfAbsent(userId, id -> new ViewerState());
+      int previousLevel = viewerState.level;
+      update(viewerState, feedback, maxLevel(sfuSession, userId), System.currentTimeMillis());
+
+      if (viewerState.level != previousLevel) {
+        int bitrate = ladder[viewerState.level];
+        log.debug("Viewer {} moved from {} to {} bps (REMB {} bps, phase {})", userId,
+            ladder[previousLevel], bitrate, feedback.getRemb(), viewerState.phase);
+        sfuSession.setTargetBitrate(userId, bitrate);
+      }
+    }
+  }
+
+  /**
+   * Moves a viewer through the ladder after a new sample. Congestion is acted on at any time, but
+   * the viewer only probes up once its hold time has expired, even if congestion has moved it out
+   * of the {@link ViewerPhase#HOLD} phase in between.
+   */
+  void update(ViewerState viewer, RTCOutboundRTPStreamStats feedback, int maxLevel, long now) {
+    long remb = feedback.getRemb();
+    double lost = feedback.getFractionLost() / FRACTION_LOST_SCALE;
+
+    if (viewer.level > maxLevel) {
+      viewer.level = maxLevel;
+      viewer.phase = ViewerPhase.STEADY;
+      viewer.samples = 0;
+      return;
+    }
+
+    boolean congested = lost > lossThreshold
+        || (remb > 0 && remb < ladder[viewer.level] * downRatio);
+    boolean headroom = !congested && viewer.level < maxLevel
+        && remb >= ladder[viewer.level + 1] * upRatio;
+    boolean held = now < viewer.holdUntil;
+
+    if (congested) {
+      viewer.samples = (viewer.phase == ViewerPhase.DEGRADING) ? viewer.samples + 1 : 1;
+      viewer.phase = ViewerPhase.DEGRADING;
+      if (viewer.samples >= downSamples) {
+        viewer.level = Math.max(0, viewer.level - 1);
+        viewer.phase = ViewerPhase.HOLD;
+        viewer.holdUntil = now + holdMillis;
+        viewer.samples = 0;
+      }
+    } else if (headroom && !held) {
+      viewer.samples = (viewer.phase == ViewerPhase.RECOVERING) ? viewer.samples + 1 : 1;
+      viewer.phase = ViewerPhase.RECOVERING;
+      if (viewer.samples >= upSamples) {
+        viewer.level++;
+        viewer.phase = ViewerPhase.STEADY;
+        viewer.samples = 0;
+      }
+    } else {
+      viewer.phase = held ? ViewerPhase.HOLD : ViewerPhase.STEADY;
+      viewer.samples = 0;
+    }
+  }
+
+  /**
+   * The SFU reports the outbound RTP statistics of every session. The ones of a viewer are those
+   * of the video SSRCs negotiated with it.
+   */
+  private static RTCOutboundRTPStreamStats findOutboundStats(Map<String, Stats> stats,
+      Set<String> ssrcs) {
+    for (Stats entry : stats.values()) {
+      if (entry instanceof RTCOutboundRTPStreamStats
+          && ssrcs.contains(((RTCOutboundRTPStreamStats) entry).getSsrc())) {
+        return (RTCOutboundRTPStreamStats) entry;
+      }
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.multisession;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Groups ICE candidates gathered in a short window, so they can be sent to the client in a single
+ * notification instead of one message per candidate.
+ * <p>
+ * A batch is flushed when the window that started with its first candidate expires, or as soon
+ * as it reaches {@code maxBatchSize} candidates.
+ *
+ * @since 6.5.1
+ */
+public class IceCandidateCoalescer {
+
+  @Value("${sfu.ice.batchWindowMillis:30}")
+  private long windowMillis;
+
+  @Value("${sfu.ice.maxBatchSize:20}")
+  private int maxBatchSize;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private final DistributionSummary batchSizes = DistributionSummary
+      .builder("sfu.ice.batch.size").description("ICE candidates sent per notification")
+      .register(Metrics.globalRegistry);
+
+  private final Timer timeToFlush = Timer.builder("sfu.ice.batch.flush")
+      .description("Time from the first buffered ICE candidate to the notification")
+      .register(Metrics.globalRegistry);
+
+  @PreDestroy
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  public <T> Batch<T> newBatch(Consumer<List<T>> sink) {
+    return new Batch<>(sink);
+  }
+
+  public class Batch<T> {
+
+    private final Consumer<List<T>> sink;
+
+    private List<T> pending = new ArrayList<>();
+    private long firstPendingNanos;
+    private ScheduledFuture<?> flushTask;
+
+    Batch(Consumer<List<T>> sink) {
+      this.sink = sink;
+    }
+
+    public void add(T item) {
+      List<T> full = null;
+
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          firstPendingNanos = System.nanoTime();
+          flushTask = scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+        pending.add(item);
+
+        if (pending.size() >= maxBatchSize) {
+          flushTask.cancel(false);
+          full = drain();
+        }
+      }
+
+      if (full != null) {
+        send(full);
+      }
+    }
+
+    public void flush() {
+      List<T> batch;
+      synchronized (this) {
+        batch = drain();
+      }
+      if (!batch.isEmpty()) {
+        send(batch);
+      }
+    }
+
+    private List<T> drain() {
+      List<T> batch = pending;
+      if (!batch.isEmpty()) {
+        timeToFlush.record(System.nanoTime() - firstPendingNanos, TimeUnit.NANOSECONDS);
+        pending = new ArrayList<>();
+      }
+      return batch;
+    }
+
+    private void send(List<T> batch) {
+      batchSizes.record(batch.size());
+      sink.accept(batch);
+    }
+  }
+
+}
@@ -17,40 +17,106 @@ package com.elasticrtc.tutorial.sfu.jsonrpc.multisession;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Named;
 
 import org.kurento.client.IceCandidate;
-import org.kurento.client.KurentoClient;
 import org.kurento.jsonrpc.JsonRpcMethod;
 import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.Transaction;
 import org.kurento.jsonrpc.TypeDefaultJsonRpcHandler;
+import org.kurento.jsonrpc.message.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.common.MediaServer;
+import com.elasticrtc.tutorial.sfu.jsonrpc.recording.SegmentedRecorderFactory;
 import com.google.common.base.Strings;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 
 /**
  * Protocol handler for 1 to N video call communication.
+ * <p>
+ * Requests operating on an existing {@link SfuSession} are answered asynchronously: the request
+ * thread hands the operation over to the session and returns, and the JSON-RPC response is sent
+ * once the media server has replied. A few threads can therefore serve many negotiations in
+ * flight, while operations of the same client are still applied in order.
  *
  * @author Ivan Gracia (igracia@kurento.org)
  * @since 6.2.1
  */
 public class SfuMultisessionDemoHandler extends TypeDefaultJsonRpcHandler {
 
+  private static final Logger log = LoggerFactory.getLogger(SfuMultisessionDemoHandler.class);
   private static final Gson gson = new GsonBuilder().create();
 
   private final Map<String, SfuSession> sfuSessions = new ConcurrentHashMap<>();
 
   @Autowired
-  private KurentoClient kurentoClient;
+  private KurentoClientPool kurentoClients;
+
+  @Autowired
+  private AdaptiveBitrateController bitrateController;
+
+  @Autowired
+  private IceCandidateCoalescer candidateCoalescer;
+
+  @Autowired
+  private SfuPool sfuPool;
+
+  @Autowired
+  private SegmentedRecorderFactory recorderFactory;
 
   public class NegotiationResponse {
     public String sdp;
   }
 
+  public SfuMultisessionDemoHandler() {
+    SfuSession.metrics.gauge("sfu.sessions", sfuSessions, Map::size);
+    SfuSession.metrics.gauge("sfu.pipelines", sfuSessions, Map::size);
+    SfuSession.metrics.gauge("sfu.viewers", sfuSessions, sessions -> sessions.values().stream()
+        .mapToInt(sfuSession -> sfuSession.getViewerSessions().size()).sum());
+  }
+
+  @Override
+  public void handleRequest(Transaction transaction, Request<JsonObject> request)
+      throws Exception {
+    Session session = transaction.getSession();
+    JsonObject params = request.getParams();
+
+    switch (request.getMethod()) {
+      case "iceCandidate":
+        sendResponseAsync(transaction,
+            iceCandidate(session, getString(params, "candidate"), getString(params, "userId")));
+        break;
+      case "switchQuality":
+        sendResponseAsync(transaction, switchQuality(session, getString(params, "userId")));
+        break;
+      case "negotiateWebRtc":
+        sendResponseAsync(transaction, negotiateWebRtc(session, getString(params, "userId"),
+            getString(params, "sdpOffer")));
+        break;
+      case "processAnswer":
+        sendResponseAsync(transaction, processAnswer(session, getString(params, "sdpAnswer"),
+            getString(params, "userId")));
+        break;
+      case "stopUserSession":
+        sendResponseAsync(transaction, stopUserSession(session, getString(params, "userId")));
+        break;
+      default:
+        super.handleRequest(transaction, request);
+        break;
+    }
+  }
+
   /**
    * Method invoked by clients sending ice candidates to the server.
    *
@@ -59,16 +125,14 @@ public class SfuMultisessionDemoHandler extends TypeDefaultJsonRpcHandler {
    * @param candidate
    *          The ICE candidate
    */
-  @JsonRpcMethod
-  public synchronized void iceCandidate(@Named Session session,
-      @Named("candidate") String candidate, @Named("userId") String userId) {
+  public CompletableFuture<Void> iceCandidate(Session session, String candidate, String userId) {
     SfuSession sfuSession = sfuSessions.get(session.getSessionId());
 
-    if (sfuSession != null) {
-      IceCandidate cand = gson.fromJson(candidate, IceCandidate.class);
-      sfuSession.addCandidate(userId, cand);
+    if (sfuSession == null) {
+      return CompletableFuture.completedFuture(null);
     }
-
+    IceCandidate cand = gson.fromJson(candidate, IceCandidate.class);
+    return sfuSession.addCandidate(userId, cand);
   }
 
   /**
@@ -79,34 +143,35 @@ public class SfuMultisessionDemoHandler extends TypeDefaultJsonRpcHandler {
    * @return The type of client that has been registered as.
    */
   @JsonRpcMethod
-  public synchronized void register(@Named final Session session,
-      @Named("simulcast") boolean simulcast) {
-    SfuSession sfuSession = new SfuSession(session, kurentoClient, simulcast);
-
-    sfuSessions.put(session.getSessionId(), sfuSession);
+  public void register(@Named final Session session, @Named("simulcast") boolean simulcast) {
+    // a pooled pipeline is already counted in the load of its server
+    MediaServer server = kurentoClients.select(null);
+    SfuSession sfuSession = new SfuSession(session, sfuPool.lease(server), simulcast,
+        candidateCoalescer, recorderFactory);
+
+    SfuSession previous = sfuSessions.put(session.getSessionId(), sfuSession);
+    if (previous != null) {
+      bitrateController.unregister(previous);
+      previous.release();
+    }
+    bitrateController.register(sfuSession);
   }
 
-  @JsonRpcMethod
-  public synchronized void switchQuality(@Named final Session session,
-      @Named("userId") String userId) {
-    SfuSession sfuSession = sfuSessions.get(session.getSessionId());
-    sfuSession.switchQuality(userId);
+  public CompletableFuture<Void> switchQuality(final Session session, String userId) {
+    return getSfuSession(session)
+        .thenCompose(sfuSession -> bitrateController.switchQuality(sfuSession, userId));
   }
 
-  @JsonRpcMethod
-  public synchronized NegotiationResponse negotiateWebRtc(@Named final Session session,
-      @Named("userId") String userId, @Named("sdpOffer") String sdpOffer) throws IOException {
+  public CompletableFuture<NegotiationResponse> negotiateWebRtc(final Session session,
+      String userId, String sdpOffer) {
 
-    NegotiationResponse response = new NegotiationResponse();
-    SfuSession sfuSession = sfuSessions.get(session.getSessionId());
-
-    sfuSession.createSession(userId);
-    if (Strings.isNullOrEmpty(sdpOffer)) {
-      response.sdp = sfuSession.generateOffer(userId);
-    } else {
-      response.sdp = sfuSession.processOffer(userId, sdpOffer);
-    }
-    return response;
+    final String offer = Strings.isNullOrEmpty(sdpOffer) ? null : sdpOffer;
+    return getSfuSession(session).thenCompose(sfuSession -> sfuSession.negotiate(userId, offer))
+        .thenApply(sdp -> {
+          NegotiationResponse response = new NegotiationResponse();
+          response.sdp = sdp;
+          return response;
+        });
   }
 
   /**
@@ -114,34 +179,31 @@ public class SfuMultisessionDemoHandler extends TypeDefaultJsonRpcHandler {
    *
    * @param session
    * @param sdpAnswer
-   * @throws IOException
    */
-  @JsonRpcMethod
-  public synchronized void processAnswer(@Named final Session session,
-      @Named("sdpAnswer") String sdpAnswer, @Named("userId") String userId) throws IOException {
-
-    SfuSession sfuSession = sfuSessions.get(session.getSessionId());
-    sfuSession.processAnswer(sdpAnswer, userId);
+  public CompletableFuture<Void> processAnswer(final Session session, String sdpAnswer,
+      String userId) {
+    return getSfuSession(session)
+        .thenCompose(sfuSession -> sfuSession.processAnswer(sdpAnswer, userId));
   }
 
   @JsonRpcMethod
-  public synchronized void stop(@Named Session session) throws IOException {
+  public void stop(@Named Session session) throws IOException {
     SfuSession user = sfuSessions.remove(session.getSessionId());
 
     if (user != null) {
+      bitrateController.unregister(user);
       user.release();
     }
 
   }
 
-  @JsonRpcMethod
-  public synchronized void stopUserSession(@Named Session session, @Named("userId") String userId)
-      throws IOException {
+  public CompletableFuture<Void> stopUserSession(Session session, String userId) {
     SfuSession sfuSession = sfuSessions.get(session.getSessionId());
 
-    if (sfuSession != null) {
-      sfuSession.releaseSession(userId);
+    if (sfuSession == null) {
+      return CompletableFuture.completedFuture(null);
     }
+    return sfuSession.releaseSession(userId);
   }
 
   @Override
@@ -149,4 +211,42 @@ public class SfuMultisessionDemoHandler extends TypeDefaultJsonRpcHandler {
     stop(session);
   }
 
+  private CompletableFuture<SfuSession> getSfuSession(Session session) {
+    CompletableFuture<SfuSession> result = new CompletableFuture<>();
+    SfuSession sfuSession = sfuSessions.get(session.getSessionId());
+
+    if (sfuSession != null) {
+      result.complete(sfuSession);
+    } else {
+      result.completeExceptionally(
+          new IllegalStateException("Session " + session.getSessionId() + " is not registered"));
+    }
+    return result;
+  }
+
+  private void sendResponseAsync(final Transaction transaction, CompletableFuture<?> result) {
+    transaction.startAsync();
+    result.whenComplete((value, error) -> {
+      try {
+        if (error == null) {
+          transaction.sendResponse(value);
+        } else {
+          Throwable cause = (error instanceof CompletionException) ? error.getCause() : error;
+          log.warn("Error processing request: {}", cause.getMessage());
+          transaction.sendError(cause);
+        }
+      } catch (IOException e) {
+        log.warn("Error sending response", e);
+      }
+    });
+  }
+
+  private static String getString(JsonObject params, String name) {
+    JsonElement value = (params != null) ? params.get(name) : null;
+    if (value == null || value.isJsonNull()) {
+      return null;
+    }
+    return value.isJsonPrimitive() ? value.getAsString() : value.toString();
+  }
+
 }
@@ -0,0 +1,214 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.multisession;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RembParams;
+import org.kurento.module.sfu.WebRtcSfu;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import com.elasticrtc.tutorial.common.MediaServer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Keeps a number of media pipelines, each one with an already configured {@link WebRtcSfu}, ready
+ * to be handed over to new {@link SfuSession}s.
+ * <p>
+ * There is a pool per media server. Every lease triggers a background refill up to
+ * {@code sfu.pool.size} entries. Entries that stay in the pool for longer than
+ * {@code sfu.pool.idleTimeoutMillis} are released and not replaced until the next lease, so an
+ * idle media server does not keep the pipelines alive. A timeout of 0 disables the eviction.
+ *
+ * @since 6.5.1
+ */
+public class SfuPool {
+
+  private static final Logger log = LoggerFactory.getLogger(SfuPool.class);
+
+  @Value("${sfu.pool.size:2}")
+  private int size;
+
+  @Value("${sfu.pool.idleTimeoutMillis:60000}")
+  private long idleTimeoutMillis;
+
+  private final Map<MediaServer, ServerPool> pools = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+
+  private final AtomicInteger pooled = new AtomicInteger();
+
+  private final Counter hits = Metrics.counter("sfu.pool.leases", "result", "hit");
+  private final Counter misses = Metrics.counter("sfu.pool.leases", "result", "miss");
+  private final Counter evictions = Metrics.counter("sfu.pool.evictions");
+
+  /**
+   * A media pipeline with its SFU, configured as every {@link SfuSession} expects.
+   */
+  public static class PooledSfu {
+
+    private final MediaPipeline pipeline;
+    private final WebRtcSfu sfu;
+    /** When the entry was put in the pool. */
+    private volatile long idleSince;
+
+    PooledSfu(MediaPipeline pipeline, WebRtcSfu sfu) {
+      this.pipeline = pipeline;
+      this.sfu = sfu;
+    }
+
+    public MediaPipeline getPipeline() {
+      return pipeline;
+    }
+
+    public WebRtcSfu getSfu() {
+      return sfu;
+    }
+  }
+
+  private class ServerPool {
+    final MediaServer server;
+    final ConcurrentLinkedDeque<PooledSfu> idle = new ConcurrentLinkedDeque<>();
+    final AtomicBoolean refilling = new AtomicBoolean();
+
+    ServerPool(MediaServer server) {
+      this.server = server;
+    }
+  }
+
+  @PostConstruct
+  public void start() {
+    Gauge.builder("sfu.pool.size", pooled, AtomicInteger::get)
+        .description("Pre-built pipelines waiting to be leased").register(Metrics.globalRegistry);
+
+    if (idleTimeoutMillis > 0) {
+      long period = Math.max(idleTimeoutMillis / 2, 1);
+      executor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    executor.shutdownNow();
+    for (ServerPool pool : pools.values()) {
+      PooledSfu entry;
+      while ((entry = pool.idle.poll()) != null) {
+        release(entry);
+      }
+    }
+  }
+
+  /**
+   * Takes a pre-built pipeline from the pool of the given media server, or builds one if the pool
+   * is empty. Only the pipelines built, on a miss or while refilling, are counted in the load of
+   * the server.
+   */
+  public PooledSfu lease(MediaServer server) {
+    ServerPool pool = pools.computeIfAbsent(server, ServerPool::new);
+    PooledSfu entry = pool.idle.pollFirst();
+
+    if (entry != null) {
+      pooled.decrementAndGet();
+      hits.increment();
+    } else {
+      misses.increment();
+      entry = create(server);
+    }
+
+    refill(pool);
+    return entry;
+  }
+
+  private void refill(final ServerPool pool) {
+    if (!pool.refilling.compareAndSet(false, true)) {
+      return;
+    }
+    executor.execute(() -> {
+      try {
+        while (pool.idle.size() < size) {
+          PooledSfu entry = create(pool.server);
+          entry.idleSince = System.currentTimeMillis();
+          pool.idle.addLast(entry);
+          pooled.incrementAndGet();
+        }
+      } catch (Exception e) {
+        log.warn("Error refilling SFU pool: {}", e.getMessage());
+      } finally {
+        pool.refilling.set(false);
+      }
+    });
+  }
+
+  private void evictIdle() {
+    long oldest = System.currentTimeMillis() - idleTimeoutMillis;
+
+    for (ServerPool pool : pools.values()) {
+      Iterator<PooledSfu> it = pool.idle.iterator();
+      while (it.hasNext()) {
+        PooledSfu entry = it.next();
+        if (entry.idleSince < oldest && pool.idle.remove(entry)) {
+          pooled.decrementAndGet();
+          evictions.increment();
+          release(entry);
+        }
+      }
+    }
+  }
+
+  private PooledSfu create(MediaServer server) {
+    server.placed();
+    MediaPipeline pipeline = server.getClient().createMediaPipeline();
+    WebRtcSfu sfu = new WebRtcSfu.Builder(pipeline).build();
+
+    RembParams rembParams = new RembParams();
+    rembParams.setRembOnConnect(SfuSession.HIGH_QUALITY_BITRATE);
+    sfu.setRembParams(rembParams);
+
+    sfu.setMaxVideoRecvBandwidth(SfuSession.HIGH_QUALITY_BITRATE / 1000); // kbps
+    sfu.setMaxVideoSendBandwidth(SfuSession.HIGH_QUALITY_BITRATE / 1000); // kbps
+
+    // this should lead to less test failures ;)
+    sfu.setMinVideoSendBandwidth(SfuSession.HIGH_QUALITY_BITRATE / 1000); // kbps
+
+    return new PooledSfu(pipeline, sfu);
+  }
+
+  private void release(PooledSfu entry) {
+    try {
+      entry.pipeline.release();
+    } catch (Exception e) {
+      log.debug("Error releasing pooled pipeline: {}", e.getMessage());
+    }
+  }
+
+}
@@ -16,26 +16,40 @@
 package com.elasticrtc.tutorial.sfu.jsonrpc.multisession;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
+import org.kurento.client.Continuation;
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.MediaProfileSpecType;
-import org.kurento.client.RecorderEndpoint;
-import org.kurento.client.RembParams;
+import org.kurento.client.MediaType;
+import org.kurento.client.Stats;
 import org.kurento.jsonrpc.Session;
 import org.kurento.module.sfu.OnSessionIceCandidateEvent;
 import org.kurento.module.sfu.WebRtcSfu;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.elasticrtc.tutorial.sfu.jsonrpc.SfuMetrics;
+import com.elasticrtc.tutorial.sfu.jsonrpc.recording.SegmentedRecorder;
+import com.elasticrtc.tutorial.sfu.jsonrpc.recording.SegmentedRecorderFactory;
 import com.google.common.base.Objects;
 
 /**
  * User session.
+ * <p>
+ * Negotiation methods are non-blocking: they issue the request to the media server and return a
+ * {@link CompletableFuture} that completes when the server answers. Operations on the same session
+ * are chained, so they reach the media server in the order they were requested without holding a
+ * thread while waiting.
  *
  * @author Ivan Gracia (igracia@kurento.org)
  * @since 6.2.1
@@ -47,32 +61,34 @@ public class SfuSession {
   public static final int HIGH_QUALITY_BITRATE = 2000000; // bps
   public static final int LOW_QUALITY_BITRATE = 240000; // bps
 
+  static final SfuMetrics metrics = new SfuMetrics("multisession");
+
   private final MediaPipeline pipeline;
 
   private final Map<String, CandidateManager> candidateManagers = new ConcurrentHashMap<>();
   private final Map<String, String> userId2SfuSession = new ConcurrentHashMap<>();
   private final Map<String, Boolean> userIdHighQuality = new ConcurrentHashMap<>();
+  private final Map<String, Set<String>> userIdVideoSsrcs = new ConcurrentHashMap<>();
   private final Session session;
   private final WebRtcSfu sfu;
+  private final IceCandidateCoalescer candidateCoalescer;
+  private final SegmentedRecorderFactory recorderFactory;
 
-  private RecorderEndpoint recorder;
-
-  public SfuSession(Session session, KurentoClient client, boolean simulcast) {
-    this.session = session;
-    this.pipeline = client.createMediaPipeline();
-    this.sfu = new WebRtcSfu.Builder(pipeline).build();
+  private SegmentedRecorder recorder;
 
-    RembParams rembParams = new RembParams();
-    rembParams.setRembOnConnect(HIGH_QUALITY_BITRATE);
-    sfu.setRembParams(rembParams);
+  private CompletableFuture<?> lastOperation = CompletableFuture.completedFuture(null);
 
-    sfu.setSimulcast(simulcast);
-
-    sfu.setMaxVideoRecvBandwidth(HIGH_QUALITY_BITRATE / 1000); // kbps
-    sfu.setMaxVideoSendBandwidth(HIGH_QUALITY_BITRATE / 1000); // kbps
+  public SfuSession(Session session, SfuPool.PooledSfu pooledSfu, boolean simulcast,
+      IceCandidateCoalescer candidateCoalescer, SegmentedRecorderFactory recorderFactory) {
+    this.session = session;
+    this.candidateCoalescer = candidateCoalescer;
+    this.recorderFactory = recorderFactory;
+    this.pipeline = pooledSfu.getPipeline();
+    this.sfu = pooledSfu.getSfu();
 
-    // this should lead to less test failures ;)
-    sfu.setMinVideoSendBandwidth(HIGH_QUALITY_BITRATE / 1000); // kbps
+    if (simulcast) {
+      sfu.setSimulcast(true);
+    }
 
     sfu.addOnSessionIceCandidateListener(new EventListener<OnSessionIceCandidateEvent>() {
       @Override
@@ -82,75 +98,211 @@ public class SfuSession {
     });
   }
 
-  public void switchQuality(String userId) {
-    if (userIdHighQuality.get(userId)) {
-      sfu.setVideoTargetBitrate(userId2SfuSession.get(userId), LOW_QUALITY_BITRATE);
-      userIdHighQuality.put(userId, false);
-    } else {
-      sfu.setVideoTargetBitrate(userId2SfuSession.get(userId), HIGH_QUALITY_BITRATE);
-      userIdHighQuality.put(userId, true);
-    }
-    log.debug("{} is now receiving in {} quality", userId, userIdHighQuality.get(userId)
-        ? "high"
-        : "low");
+  public CompletableFuture<Void> switchQuality(final String userId) {
+    return enqueue(() -> {
+      final boolean highQuality = !userIdHighQuality.get(userId);
+      CompletableFuture<Void> switched = new CompletableFuture<>();
+      sfu.setVideoTargetBitrate(userId2SfuSession.get(userId),
+          highQuality ? HIGH_QUALITY_BITRATE : LOW_QUALITY_BITRATE, completing(switched));
+      return switched.thenRun(() -> {
+        userIdHighQuality.put(userId, highQuality);
+        log.debug("{} is now receiving in {} quality", userId, highQuality ? "high" : "low");
+      });
+    });
+  }
+
+  /**
+   * Sets the bitrate the SFU targets when sending video to the given user. This does not change
+   * the quality selected by the user, which bounds the bitrates the adaptive controller uses.
+   */
+  public CompletableFuture<Void> setTargetBitrate(final String userId, final int bitrate) {
+    return enqueue(() -> {
+      CompletableFuture<Void> set = new CompletableFuture<>();
+      sfu.setVideoTargetBitrate(userId2SfuSession.get(userId), bitrate, completing(set));
+      return set;
+    });
   }
 
-  public void addCandidate(String userId, IceCandidate candidate) {
-    sfu.addIceCandidate(userId2SfuSession.get(userId), candidate);
+  public boolean isHighQuality(String userId) {
+    return !Boolean.FALSE.equals(userIdHighQuality.get(userId));
   }
 
-  public void release() {
-    this.sfu.release();
-    this.pipeline.release();
+  /**
+   * @return the SFU session id of every user receiving media, indexed by user id
+   */
+  public Map<String, String> getViewerSessions() {
+    Map<String, String> viewers = new HashMap<>(userId2SfuSession);
+    viewers.remove("presenter");
+    return viewers;
+  }
+
+  /**
+   * @return the SSRCs of the video sent to every user receiving media, indexed by user id, as
+   *         found in the SDP negotiated with them
+   */
+  public Map<String, Set<String>> getViewerVideoSsrcs() {
+    Map<String, Set<String>> viewers = new HashMap<>(userIdVideoSsrcs);
+    viewers.remove("presenter");
+    return viewers;
+  }
 
+  public CompletableFuture<Map<String, Stats>> getVideoStats() {
+    CompletableFuture<Map<String, Stats>> stats = new CompletableFuture<>();
+    sfu.getStats(MediaType.VIDEO, completing(stats));
+    return stats;
   }
 
-  public void releaseSession(String userId) {
-    this.sfu.releaseSession(userId2SfuSession.get(userId));
-    this.candidateManagers.remove(userId2SfuSession.get(userId));
+  public CompletableFuture<Void> addCandidate(final String userId, final IceCandidate candidate) {
+    metrics.candidateReceived();
+    return enqueue(() -> metrics.timeAsync(SfuMetrics.ADD_ICE_CANDIDATE, () -> {
+      CompletableFuture<Void> added = new CompletableFuture<>();
+      sfu.addIceCandidate(userId2SfuSession.get(userId), candidate, completing(added));
+      return added;
+    }));
   }
 
-  public void processAnswer(String sdpAnswer, String userId) {
-    this.sfu.processAnswer(userId2SfuSession.get(userId), sdpAnswer);
+  /**
+   * Stops the recording, if any, and releases the SFU and its pipeline once the operations
+   * already requested have completed.
+   */
+  public CompletableFuture<Void> release() {
+    // the recorder calls the media server synchronously, so it is stopped off the callback thread
+    return enqueue(() -> CompletableFuture.runAsync(this::stopRecording)
+        .handle((ignored, error) -> (Void) null).thenCompose(ignored -> {
+          CompletableFuture<Void> sfuReleased = new CompletableFuture<>();
+          this.sfu.release(completing(sfuReleased));
+          return sfuReleased;
+        }).handle((ignored, error) -> (Void) null).thenCompose(ignored -> {
+          CompletableFuture<Void> pipelineReleased = new CompletableFuture<>();
+          this.pipeline.release(completing(pipelineReleased));
+          return pipelineReleased;
+        }));
   }
 
-  public String generateOffer(String userId) {
-    return this.sfu.generateOffer(userId2SfuSession.get(userId));
+  public CompletableFuture<Void> releaseSession(final String userId) {
+    return enqueue(() -> {
+      String sessionId = userId2SfuSession.get(userId);
+      CompletableFuture<Void> released = new CompletableFuture<>();
+      this.sfu.releaseSession(sessionId, completing(released));
+      return released.thenRun(() -> {
+        this.candidateManagers.remove(sessionId);
+        this.userIdVideoSsrcs.remove(userId);
+      });
+    });
   }
 
-  public String processOffer(String userId, String sdpOffer) {
-    return this.sfu.processOffer(userId2SfuSession.get(userId), sdpOffer);
+  public CompletableFuture<Void> processAnswer(final String sdpAnswer, final String userId) {
+    return enqueue(() -> metrics.timeAsync(SfuMetrics.PROCESS_ANSWER, () -> {
+      CompletableFuture<Void> processed = new CompletableFuture<>();
+      this.sfu.processAnswer(userId2SfuSession.get(userId), sdpAnswer, completing(processed));
+      return processed;
+    }));
   }
 
-  public void createSession(String userId) {
-    String sessionId = this.sfu.createSession();
-    userId2SfuSession.put(userId, sessionId);
-    userIdHighQuality.put(userId, true);
-    candidateManagers.put(sessionId, new CandidateManager(userId));
+  /**
+   * Creates the SFU session for the given user and negotiates it. If no SDP offer is given, an
+   * offer is generated by the media server; otherwise, the offer is processed and the answer
+   * returned.
+   *
+   * @param userId
+   *          the user to negotiate
+   * @param sdpOffer
+   *          the offer sent by the user, or {@code null}
+   * @return a future completed with the SDP generated by the media server
+   */
+  public CompletableFuture<String> negotiate(final String userId, final String sdpOffer) {
+    return enqueue(() -> createSfuSession(userId).thenCompose(sessionId -> {
+      CompletableFuture<String> negotiated;
+      if (sdpOffer == null) {
+        negotiated = metrics.timeAsync(SfuMetrics.GENERATE_OFFER, () -> {
+          CompletableFuture<String> sdp = new CompletableFuture<>();
+          this.sfu.generateOffer(sessionId, completing(sdp));
+          return sdp;
+        });
+      } else {
+        negotiated = metrics.timeAsync(SfuMetrics.PROCESS_OFFER, () -> {
+          CompletableFuture<String> sdp = new CompletableFuture<>();
+          this.sfu.processOffer(sessionId, sdpOffer, completing(sdp));
+          return sdp;
+        });
+      }
+      return negotiated.thenApply(sdp -> {
+        userIdVideoSsrcs.put(userId, getVideoSsrcs(sdp));
+        return sdp;
+      });
+    }));
+  }
 
-    if ("presenter".equals(userId)) {
-      this.sfu.setMasterSession(sessionId);
+  /**
+   * The SSRCs declared in the video sections of an SDP generated by the media server, which are
+   * the ones it sends video with.
+   */
+  private static Set<String> getVideoSsrcs(String sdp) {
+    Set<String> ssrcs = new HashSet<>();
+    boolean video = false;
+    for (String line : sdp.split("\\r?\\n")) {
+      if (line.startsWith("m=")) {
+        video = line.startsWith("m=video");
+      } else if (video && line.startsWith("a=ssrc:")) {
+        int end = line.indexOf(' ');
+        ssrcs.add(line.substring("a=ssrc:".length(), end < 0 ? line.length() : end));
+      }
     }
+    return ssrcs;
   }
 
-  public void startRecording(String path, MediaProfileSpecType mediaProfile) {
+  private CompletableFuture<String> createSfuSession(final String userId) {
+    CompletableFuture<String> created = metrics.timeAsync(SfuMetrics.CREATE_SESSION, () -> {
+      CompletableFuture<String> sessionId = new CompletableFuture<>();
+      this.sfu.createSession(completing(sessionId));
+      return sessionId;
+    });
+
+    return created.thenCompose(sessionId -> {
+      userId2SfuSession.put(userId, sessionId);
+      userIdHighQuality.put(userId, true);
+      candidateManagers.put(sessionId, new CandidateManager(userId));
+
+      if (!"presenter".equals(userId)) {
+        return CompletableFuture.completedFuture(sessionId);
+      }
+      CompletableFuture<Void> master = new CompletableFuture<>();
+      this.sfu.setMasterSession(sessionId, completing(master));
+      return master.thenApply(ignored -> sessionId);
+    });
+  }
+
+  private synchronized <T> CompletableFuture<T> enqueue(Supplier<CompletableFuture<T>> operation) {
+    CompletableFuture<T> result = lastOperation.handle((ignored, error) -> (Void) null)
+        .thenCompose(ignored -> operation.get());
+    lastOperation = result;
+    return result;
+  }
+
+  private static <T> Continuation<T> completing(final CompletableFuture<T> future) {
+    return new Continuation<T>() {
+      @Override
+      public void onSuccess(T result) {
+        future.complete(result);
+      }
+
+      @Override
+      public void onError(Throwable cause) {
+        future.completeExceptionally(cause);
+      }
+    };
+  }
+
+  public synchronized void startRecording(String path, MediaProfileSpecType mediaProfile) {
     if (recorder == null) {
-      recorder = new RecorderEndpoint.Builder(this.pipeline, path).withMediaProfile(mediaProfile)
-          .build();
-      this.sfu.connect(recorder);
-      recorder.record();
+      recorder = recorderFactory.record(this.pipeline, this.sfu, path, mediaProfile);
     }
   }
 
-  public void stopRecording() {
+  public synchronized void stopRecording() {
     if (recorder != null) {
       recorder.stop();
-      try {
-        recorder.release();
-        recorder = null;
-      } catch (Exception e) {
-        log.warn("Error releasing recorder endpoint", e);
-      }
+      recorder = null;
     }
   }
 
@@ -167,12 +319,12 @@ public class SfuSession {
     return Objects.equal(((SfuSession) obj).session.getSessionId(), this.session.getSessionId());
   }
 
-  class UserIceCandidate {
-    final IceCandidate candidate;
+  class UserIceCandidates {
+    final List<IceCandidate> candidates;
     final String userId;
 
-    UserIceCandidate(IceCandidate candidate, String userId) {
-      this.candidate = candidate;
+    UserIceCandidates(List<IceCandidate> candidates, String userId) {
+      this.candidates = candidates;
       this.userId = userId;
     }
   }
@@ -180,16 +332,22 @@ public class SfuSession {
   private class CandidateManager {
 
     private final String userId;
+    private final IceCandidateCoalescer.Batch<IceCandidate> candidates;
 
     CandidateManager(String userId) {
       this.userId = userId;
+      this.candidates = candidateCoalescer.newBatch(this::sendCandidates);
     }
 
     public void manageCandidate(IceCandidate candidate) {
+      metrics.candidateSent();
+      candidates.add(candidate);
+    }
 
+    private void sendCandidates(List<IceCandidate> batch) {
       try {
         synchronized (session) {
-          session.sendNotification("iceCandidate", new UserIceCandidate(candidate, userId));
+          session.sendNotification("iceCandidates", new UserIceCandidates(batch, userId));
         }
       } catch (IOException e) {
         log.debug(e.getMessage(), e);
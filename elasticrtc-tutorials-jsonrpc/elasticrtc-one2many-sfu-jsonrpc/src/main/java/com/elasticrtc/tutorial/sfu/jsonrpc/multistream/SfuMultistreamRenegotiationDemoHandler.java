@@ -16,13 +16,15 @@
 package com.elasticrtc.tutorial.sfu.jsonrpc.multistream;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Named;
 
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.jsonrpc.JsonRpcMethod;
 import org.kurento.jsonrpc.Session;
@@ -33,11 +35,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.sfu.jsonrpc.RenegotiationScheduler;
+import com.elasticrtc.tutorial.sfu.jsonrpc.SfuMetrics;
+import com.elasticrtc.tutorial.sfu.jsonrpc.cascade.CascadedSfu;
+import com.elasticrtc.tutorial.sfu.jsonrpc.cascade.SfuCascade;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 /**
  * Protocol handler for 1 to N video call communication.
+ * <p>
+ * Viewers are renegotiated through the {@link RenegotiationScheduler}, so each one has at most an
+ * offer in flight, and offers started by the server never cross the ones of the client.
  *
  * @author Ivan Gracia (igracia@kurento.org)
  * @since 6.2.1
@@ -52,7 +62,27 @@ public class SfuMultistreamRenegotiationDemoHandler extends TypeDefaultJsonRpcHa
   private final ConcurrentHashMap<String, CandidateManager> candidateManagers = new ConcurrentHashMap<>();
 
   @Autowired
-  private KurentoClient kurento;
+  private KurentoClientPool kurento;
+
+  @Autowired
+  private SfuCascade sfuCascade;
+
+  @Autowired
+  private RenegotiationScheduler renegotiationScheduler;
+
+  private CascadedSfu cascade;
+
+  private final EventListener<OnSessionIceCandidateEvent> candidateListener =
+      new EventListener<OnSessionIceCandidateEvent>() {
+        @Override
+        public void onEvent(OnSessionIceCandidateEvent event) {
+          CandidateManager manager = candidateManagers.get(event.getSessionId());
+          // the master sessions of relay SFUs exchange their candidates in the cascade
+          if (manager != null) {
+            manager.manageCandidate(event.getCandidate());
+          }
+        }
+      };
 
   private MediaPipeline pipeline;
   private UserSession presenter;
@@ -63,6 +93,13 @@ public class SfuMultistreamRenegotiationDemoHandler extends TypeDefaultJsonRpcHa
     public String message;
   }
 
+  public SfuMultistreamRenegotiationDemoHandler() {
+    UserSession.metrics.gauge("sfu.sessions", clients, Map::size);
+    UserSession.metrics.gauge("sfu.viewers", this,
+        handler -> handler.clients.size() - (handler.presenter != null ? 1 : 0));
+    UserSession.metrics.gauge("sfu.pipelines", this, handler -> handler.pipeline != null ? 1 : 0);
+  }
+
   public class NegotiationResponse {
     public String sdpOffer;
     public String sdpAnswer;
@@ -82,7 +119,7 @@ public class SfuMultistreamRenegotiationDemoHandler extends TypeDefaultJsonRpcHa
 
     if ((user != null) && (presenter != null)) {
       IceCandidate cand = gson.fromJson(candidate, IceCandidate.class);
-      presenter.addCandidate(user, cand);
+      user.addCandidate(cand);
     }
 
   }
@@ -117,20 +154,17 @@ public class SfuMultistreamRenegotiationDemoHandler extends TypeDefaultJsonRpcHa
       sfu.setSimulcast(simulcast);
       sfu.setMaxVideoRecvBandwidth(2000);
       sfu.setMinVideoRecvBandwidth(2000);
-      sfu.addOnSessionIceCandidateListener(new EventListener<OnSessionIceCandidateEvent>() {
-        @Override
-        public void onEvent(OnSessionIceCandidateEvent event) {
-          candidateManagers.get(event.getSessionId()).manageCandidate(event.getCandidate());
-        }
-      });
+      sfu.addOnSessionIceCandidateListener(candidateListener);
       user.setEndpoint(sfu);
+      cascade = sfuCascade.create(sfu, simulcast, candidateListener);
 
-      sfuSessionId = sfu.createSession();
+      sfuSessionId = UserSession.metrics.time(SfuMetrics.CREATE_SESSION, () -> sfu.createSession());
       sfu.setMasterSession(sfuSessionId);
 
     } else {
-      user.setEndpoint(presenter.getEndpoint());
-      sfuSessionId = presenter.getEndpoint().createSession();
+      WebRtcSfu sfu = cascade.placeViewer();
+      user.setEndpoint(sfu);
+      sfuSessionId = UserSession.metrics.time(SfuMetrics.CREATE_SESSION, () -> sfu.createSession());
     }
 
     user.setSfuSessionId(sfuSessionId);
@@ -147,31 +181,49 @@ public class SfuMultistreamRenegotiationDemoHandler extends TypeDefaultJsonRpcHa
     UserSession user = clients.get(session.getSessionId());
 
     if (sdpOffer == null) {
-      response.sdpOffer = user.generateOffer();
+      response.sdpOffer = renegotiationScheduler.negotiate(user, true, user::generateOffer);
       log.debug("Generated viewer SDP offer:\n{}", response.sdpOffer);
     } else {
       if (!presenter.equals(user)) {
         throw new Exception("Only the presenter can initiate media negotiation");
       }
-      response.sdpAnswer = user.processOffer(sdpOffer);
+      response.sdpAnswer = renegotiationScheduler.negotiate(user, false,
+          () -> user.processOffer(sdpOffer));
       log.debug("Processed presenter SDP offer:\n{}\nOur SDP answer:\n{}", sdpOffer,
           response.sdpAnswer);
 
-      for (UserSession sessUser : clients.values()) {
-        if (presenter.equals(sessUser)) {
-          continue;
-        }
-
-        if (sessUser.isNegotiationNeeded()) {
-          String viewerSdpOffer = sessUser.generateOffer();
+      List<UserSession> viewers = new ArrayList<>(clients.values());
+      viewers.remove(presenter);
+      for (UserSession viewer : viewers) {
+        renegotiationScheduler.request(viewer, () -> offerIfNeeded(viewer));
+      }
+    }
+    return response;
+  }
 
-          log.debug("Negotiate viewer with SDP offer:\n{}", viewerSdpOffer);
+  private boolean offerIfNeeded(UserSession viewer) {
+    if (clients.get(viewer.getSession().getSessionId()) != viewer) {
+      return false;
+    }
+    String viewerSdpOffer;
+    synchronized (viewer) {
+      if (!viewer.isNegotiationNeeded()) {
+        return false;
+      }
+      viewerSdpOffer = viewer.generateOffer();
+    }
+    log.debug("Negotiate viewer with SDP offer:\n{}", viewerSdpOffer);
 
-          sessUser.getSession().sendNotification("viewerNegotiation", viewerSdpOffer);
-        }
+    try {
+      synchronized (viewer.getSession()) {
+        viewer.getSession().sendNotification("viewerNegotiation", viewerSdpOffer);
       }
+      return true;
+    } catch (IOException e) {
+      log.warn("Could not send SDP offer to {}: {}", viewer.getSession().getSessionId(),
+          e.getMessage());
+      return false;
     }
-    return response;
   }
 
   /**
@@ -187,6 +239,7 @@ public class SfuMultistreamRenegotiationDemoHandler extends TypeDefaultJsonRpcHa
 
     UserSession viewer = clients.get(session.getSessionId());
     viewer.processAnswer(sdpAnswer);
+    renegotiationScheduler.answered(viewer);
 
     log.debug("Processed viewer SDP answer:\n{}", sdpAnswer);
   }
@@ -196,9 +249,17 @@ public class SfuMultistreamRenegotiationDemoHandler extends TypeDefaultJsonRpcHa
     UserSession user = clients.remove(session.getSessionId());
 
     if (user != null) {
-      user.release(user.equals(presenter));
+      renegotiationScheduler.cancel(user);
+      candidateManagers.remove(user.getSfuSessionId());
       if (user.equals(presenter)) {
+        user.release(true);
         presenter = null;
+        cascade.release();
+        cascade = null;
+        dropViewers();
+      } else if (cascade != null) {
+        user.release(false);
+        cascade.releaseViewer(user.getEndpoint());
       }
     }
 
@@ -209,6 +270,18 @@ public class SfuMultistreamRenegotiationDemoHandler extends TypeDefaultJsonRpcHa
 
   }
 
+  /**
+   * Forgets the SFU sessions of the viewers still registered when the presenter leaves. They lived
+   * in the presenter SFU or in its relays, which are released with it.
+   */
+  private void dropViewers() {
+    for (UserSession viewer : clients.values()) {
+      renegotiationScheduler.cancel(viewer);
+      candidateManagers.remove(viewer.getSfuSessionId());
+      viewer.setEndpoint(null);
+    }
+  }
+
   @Override
   public void afterConnectionClosed(Session session, String status) {
     stop(session);
@@ -223,6 +296,7 @@ public class SfuMultistreamRenegotiationDemoHandler extends TypeDefaultJsonRpcHa
     }
 
     public void manageCandidate(IceCandidate candidate) {
+      UserSession.metrics.candidateSent();
 
       try {
         synchronized (session) {
@@ -19,16 +19,22 @@ import org.kurento.client.IceCandidate;
 import org.kurento.jsonrpc.Session;
 import org.kurento.module.sfu.WebRtcSfu;
 
+import com.elasticrtc.tutorial.sfu.jsonrpc.SfuMetrics;
 import com.google.common.base.Objects;
 
 /**
  * User session.
+ * <p>
+ * Every operation on the SFU session holds the lock of the user session, so offers generated on
+ * the fan-out pool never interleave with the answers, candidates or release done by the handler.
  *
  * @author Ivan Gracia (igracia@kurento.org)
  * @since 6.2.1
  */
 public class UserSession {
 
+  static final SfuMetrics metrics = new SfuMetrics("multistream");
+
   private final Session session;
   private WebRtcSfu sfu;
   private String sfuSessionId;
@@ -49,15 +55,12 @@ public class UserSession {
     this.sfu = sfu;
   }
 
-  public void addCandidate(UserSession session, IceCandidate candidate) {
-    sfu.addIceCandidate(session.getSfuSessionId(), candidate);
-  }
-
-  private String getSfuSessionId() {
-    return this.sfuSessionId;
+  public synchronized void addCandidate(IceCandidate candidate) {
+    metrics.candidateReceived();
+    metrics.time(SfuMetrics.ADD_ICE_CANDIDATE, () -> sfu.addIceCandidate(sfuSessionId, candidate));
   }
 
-  public void release(boolean isPresenter) {
+  public synchronized void release(boolean isPresenter) {
     if (this.sfu != null) {
       if (isPresenter) {
         this.sfu.release();
@@ -67,24 +70,29 @@ public class UserSession {
     }
   }
 
+  public String getSfuSessionId() {
+    return sfuSessionId;
+  }
+
   public void setSfuSessionId(String sfuSessionId) {
     this.sfuSessionId = sfuSessionId;
   }
 
-  public boolean isNegotiationNeeded() {
+  public synchronized boolean isNegotiationNeeded() {
     return this.sfu.isNegotiationNeeded(sfuSessionId);
   }
 
-  public void processAnswer(String sdpAnswer) {
-    this.sfu.processAnswer(sfuSessionId, sdpAnswer);
+  public synchronized void processAnswer(String sdpAnswer) {
+    metrics.time(SfuMetrics.PROCESS_ANSWER, () -> this.sfu.processAnswer(sfuSessionId, sdpAnswer));
   }
 
-  public String processOffer(String sdpOffer) {
-    return this.sfu.processOffer(sfuSessionId, sdpOffer);
+  public synchronized String processOffer(String sdpOffer) {
+    return metrics.time(SfuMetrics.PROCESS_OFFER,
+        () -> this.sfu.processOffer(sfuSessionId, sdpOffer));
   }
 
-  public String generateOffer() {
-    return this.sfu.generateOffer(sfuSessionId);
+  public synchronized String generateOffer() {
+    return metrics.time(SfuMetrics.GENERATE_OFFER, () -> this.sfu.generateOffer(sfuSessionId));
   }
 
   @Override
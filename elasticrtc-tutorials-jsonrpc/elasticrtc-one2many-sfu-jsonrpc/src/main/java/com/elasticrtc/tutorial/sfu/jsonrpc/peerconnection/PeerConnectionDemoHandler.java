@@ -16,26 +16,40 @@
 package com.elasticrtc.tutorial.sfu.jsonrpc.peerconnection;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Named;
 
-import org.kurento.client.KurentoClient;
-import org.kurento.client.MediaPipeline;
 import org.kurento.jsonrpc.JsonRpcMethod;
 import org.kurento.jsonrpc.Session;
 import org.kurento.jsonrpc.TypeDefaultJsonRpcHandler;
+import org.kurento.module.sfu.MediaStream;
 import org.kurento.module.sfu.RTCIceCandidate;
 import org.kurento.module.sfu.RTCPeerConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.elasticrtc.tutorial.common.AdmissionController;
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.common.MediaServer;
+import com.elasticrtc.tutorial.sfu.jsonrpc.RenegotiationScheduler;
+import com.elasticrtc.tutorial.sfu.jsonrpc.SfuMetrics;
+import com.google.common.base.Strings;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 /**
  * Protocol handler for 1 to N video call communication.
+ * <p>
+ * Clients join the {@link Room} given on registration. Each room has its own pipeline and
+ * presenter, and requests are serialized per room instead of across the whole handler. Viewers
+ * joining a room with a presenter go through the {@link AdmissionController}: under load they get
+ * a {@code waiting} response, and the final one arrives later as an {@code admission}
+ * notification.
  *
  * @author Ivan Gracia (igracia@kurento.org)
  * @since 6.2.1
@@ -45,20 +59,42 @@ public class PeerConnectionDemoHandler extends TypeDefaultJsonRpcHandler {
   private static final Logger log = LoggerFactory.getLogger(PeerConnectionDemoHandler.class);
   private static final Gson gson = new GsonBuilder().create();
 
+  private static final String DEFAULT_ROOM = "default";
+
   private final ConcurrentHashMap<String, UserSession> clients = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Room> clientRooms = new ConcurrentHashMap<>();
   private final ConcurrentHashMap<String, CandidateManager> candidateManagers =
       new ConcurrentHashMap<>();
 
   @Autowired
-  private KurentoClient kurento;
+  private KurentoClientPool kurento;
+
+  @Autowired
+  private RenegotiationScheduler renegotiationScheduler;
 
-  private MediaPipeline pipeline;
-  private UserSession presenter;
+  @Autowired
+  private SubscriberUpdater subscriberUpdater;
+
+  @Autowired
+  private SimulcastLayerController simulcastController;
+
+  @Autowired
+  private AdmissionController admission;
 
   public class RegisterResponse {
     public String response;
     public String type = "viewer";
     public String message;
+    public int position;
+    public int retryAfter;
+  }
+
+  public PeerConnectionDemoHandler() {
+    UserSession.metrics.gauge("sfu.sessions", clients, Map::size);
+    UserSession.metrics.gauge("sfu.viewers", rooms,
+        map -> map.values().stream().mapToInt(Room::getViewerCount).sum());
+    UserSession.metrics.gauge("sfu.pipelines", rooms, Map::size);
   }
 
   public class NegotiationResponse {
@@ -66,6 +102,12 @@ public class PeerConnectionDemoHandler extends TypeDefaultJsonRpcHandler {
     public String sdpAnswer;
   }
 
+  public class TrackInfo {
+    public String id;
+    public String kind;
+    public List<String> streams = new ArrayList<>();
+  }
+
   /**
    * Method invoked by clients sending ice candidates to the server.
    *
@@ -75,7 +117,7 @@ public class PeerConnectionDemoHandler extends TypeDefaultJsonRpcHandler {
    *          The ICE candidate
    */
   @JsonRpcMethod
-  public synchronized void iceCandidate(@Named Session session,
+  public void iceCandidate(@Named Session session,
       @Named("candidate") String candidate) {
     UserSession user = clients.get(session.getSessionId());
 
@@ -88,79 +130,294 @@ public class PeerConnectionDemoHandler extends TypeDefaultJsonRpcHandler {
 
   /**
    * Method invoked by a client connecting to the server. The first client to invoke this method
-   * will be considered the presenter.
+   * in a room will be considered the presenter of that room.
    *
    * @param session
    *          the client session
+   * @param roomId
+   *          the room to join. Clients not giving one join the default room
    * @return The type of client that has been registered as.
    */
   @JsonRpcMethod
-  public synchronized RegisterResponse register(@Named final Session session,
-      @Named("simulcast") boolean simulcast) {
+  public RegisterResponse register(@Named final Session session,
+      @Named("simulcast") boolean simulcast, @Named("roomId") String roomId) {
+
+    final String id = Strings.isNullOrEmpty(roomId) ? DEFAULT_ROOM : roomId;
+    RegisterResponse presenter = registerIfPresenter(session, simulcast, id);
+    if (presenter != null) {
+      return presenter;
+    }
+
+    AdmissionController.Decision decision = admission.request(id, session.getSessionId(),
+        new AdmissionController.Listener() {
+          @Override
+          public void waiting(int position) {
+            notifyAdmission(session, waitingResponse(position));
+          }
+
+          @Override
+          public void admitted() {
+            RegisterResponse response;
+            try {
+              response = join(session, simulcast, id);
+            } catch (RuntimeException e) {
+              log.warn("Error registering admitted viewer {}: {}", session.getSessionId(),
+                  e.getMessage());
+              response = rejectedResponse(e.getMessage(), 0);
+            }
+            notifyAdmission(session, response);
+          }
+
+          @Override
+          public void rejected(int retryAfterSeconds) {
+            notifyAdmission(session, rejectedResponse(
+                "Too many viewers right now. Try again later.", retryAfterSeconds));
+          }
+        });
+
+    switch (decision.getState()) {
+      case ADMITTED:
+        return join(session, simulcast, id);
+      case WAITING:
+        return waitingResponse(decision.getPosition());
+      default:
+        return rejectedResponse("Too many viewers right now. Try again later.",
+            decision.getRetryAfterSeconds());
+    }
+  }
+
+  /**
+   * Registers the client as presenter if the room has none. Presenters, who open the room, are
+   * always admitted. Deciding under the room lock keeps concurrent joins from also taking the
+   * presenter path while the presenter is being set up.
+   *
+   * @return the response, or {@code null} if the room already has a presenter
+   */
+  private RegisterResponse registerIfPresenter(Session session, boolean simulcast, String id) {
+    while (true) {
+      Room room = rooms.computeIfAbsent(id, Room::new);
+      synchronized (room) {
+        // the last member may have closed the room after we got it
+        if (!room.isClosed()) {
+          return room.getPresenter() == null ? register(session, simulcast, room) : null;
+        }
+      }
+    }
+  }
 
+  private RegisterResponse join(Session session, boolean simulcast, String id) {
+    try {
+      while (true) {
+        Room room = rooms.computeIfAbsent(id, Room::new);
+        synchronized (room) {
+          // the last member may have closed the room after we got it
+          if (!room.isClosed()) {
+            return register(session, simulcast, room);
+          }
+        }
+      }
+    } finally {
+      if (!clientRooms.containsKey(session.getSessionId())) {
+        admission.release(session.getSessionId());
+      }
+    }
+  }
+
+  private RegisterResponse waitingResponse(int position) {
+    RegisterResponse response = new RegisterResponse();
+    response.response = "waiting";
+    response.type = null;
+    response.position = position;
+    return response;
+  }
+
+  private RegisterResponse rejectedResponse(String message, int retryAfterSeconds) {
+    RegisterResponse response = new RegisterResponse();
+    response.response = "rejected";
+    response.type = null;
+    response.message = message;
+    response.retryAfter = retryAfterSeconds;
+    return response;
+  }
+
+  private void notifyAdmission(Session session, RegisterResponse response) {
+    try {
+      synchronized (session) {
+        session.sendNotification("admission", response);
+      }
+    } catch (IOException e) {
+      log.warn("Could not send admission to {}: {}", session.getSessionId(), e.getMessage());
+    }
+  }
+
+  private RegisterResponse register(Session session, boolean simulcast, Room room) {
     RegisterResponse response = new RegisterResponse();
+    response.response = "accepted";
     response.type = "viewer";
     UserSession user = new UserSession(session);
-    clients.put(session.getSessionId(), user);
 
-    if (pipeline == null) {
-      pipeline = kurento.createMediaPipeline();
+    if (room.getPipeline() == null) {
+      MediaServer host = kurento.choose(room.getId());
+      room.setPipeline(kurento.createMediaPipeline(host));
+      admission.setHost(room.getId(), host);
     }
 
-    RTCPeerConnection pc = new RTCPeerConnection.Builder(pipeline).build();
+    RTCPeerConnection pc = UserSession.metrics.time(SfuMetrics.CREATE_SESSION,
+        () -> new RTCPeerConnection.Builder(room.getPipeline()).build());
 
     candidateManagers.put(pc.getId(), new CandidateManager(session));
     pc.addNewIceCandidateListener(event -> candidateManagers.get(event.getSource().getId())
         .manageCandidate(event.getCandidate()));
 
-    user.setEndpoint(pc);
+    user.setEndpoint(pc, presenter -> subscriberUpdater.update(presenter,
+        presenter.getSubscribers(), this::renegotiate));
+    room.join(user);
+    clients.put(session.getSessionId(), user);
+    clientRooms.put(session.getSessionId(), room);
 
-    if (presenter == null) {
-      presenter = user;
+    if (room.getPresenter() == null) {
+      room.setPresenter(user);
+      room.setSimulcast(simulcast);
       response.type = "presenter";
 
-      // TODO: Simulcast?
-      // TODO: Set max/min bandwidth
+      if (simulcast) {
+        // room for every encoding published by the presenter
+        pc.setMaxVideoRecvBandwidth(simulcastController.getPresenterBandwidth());
+      }
     } else {
-      presenter.connect(user);
+      if (room.isSimulcast()) {
+        simulcastController.register(user);
+      }
+      room.getPresenter().connect(user);
     }
 
     return response;
   }
 
   @JsonRpcMethod
-  public synchronized NegotiationResponse negotiateWebRtc(@Named final Session session,
+  public NegotiationResponse negotiateWebRtc(@Named final Session session,
       @Named("sdpOffer") String sdpOffer) throws Exception {
 
     NegotiationResponse response = new NegotiationResponse();
-    UserSession user = clients.get(session.getSessionId());
+    Room room = getRoom(session);
 
-    if (sdpOffer == null) {
-      response.sdpOffer = user.generateOffer();
-      log.debug("Generated viewer SDP offer:\n{}", response.sdpOffer);
-    } else {
-      if (!presenter.equals(user)) {
-        throw new Exception("Only the presenter can initiate media negotiation");
-      }
-      response.sdpAnswer = user.processOffer(sdpOffer);
-      log.debug("Processed presenter SDP offer:\n{}\nOur SDP answer:\n{}", sdpOffer,
-          response.sdpAnswer);
+    synchronized (room) {
+      UserSession user = clients.get(session.getSessionId());
 
-      for (UserSession userSession : clients.values()) {
-        if (presenter.equals(userSession)) {
-          continue;
+      if (sdpOffer == null) {
+        response.sdpOffer = renegotiationScheduler.negotiate(user, true, user::generateOffer);
+        log.debug("Generated viewer SDP offer:\n{}", response.sdpOffer);
+      } else {
+        if (!user.equals(room.getPresenter())) {
+          throw new Exception("Only the presenter can initiate media negotiation");
         }
+        // viewers are renegotiated by the subscriber updater, once the new tracks are added
+        response.sdpAnswer = renegotiationScheduler.negotiate(user, false,
+            () -> user.processOffer(sdpOffer));
+        log.debug("Processed presenter SDP offer:\n{}\nOur SDP answer:\n{}", sdpOffer,
+            response.sdpAnswer);
+      }
+    }
+    return response;
+  }
 
-        if (userSession.isNegotiationNeeded()) {
-          String viewerSdpOffer = userSession.generateOffer();
+  private void renegotiate(UserSession viewer) {
+    renegotiationScheduler.request(viewer, () -> offerIfNeeded(viewer));
+  }
 
-          log.debug("Negotiate viewer with SDP offer:\n{}", viewerSdpOffer);
+  private boolean offerIfNeeded(UserSession viewer) {
+    if (clients.get(viewer.getSession().getSessionId()) != viewer) {
+      return false;
+    }
+    String viewerSdpOffer;
+    synchronized (viewer) {
+      if (!viewer.isNegotiationNeeded()) {
+        return false;
+      }
+      viewerSdpOffer = viewer.generateOffer();
+    }
+    log.debug("Negotiate viewer with SDP offer:\n{}", viewerSdpOffer);
 
-          userSession.getSession().sendNotification("viewerNegotiation", viewerSdpOffer);
-        }
+    try {
+      synchronized (viewer.getSession()) {
+        viewer.getSession().sendNotification("viewerNegotiation", viewerSdpOffer);
       }
+      return true;
+    } catch (IOException e) {
+      log.warn("Could not send SDP offer to {}: {}", viewer.getSession().getSessionId(),
+          e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Lists the tracks published by the presenter, so viewers can choose which ones to subscribe to.
+   */
+  @JsonRpcMethod
+  public List<TrackInfo> getTracks(@Named final Session session) {
+    List<TrackInfo> tracks = new ArrayList<>();
+    UserSession presenter = getRoom(session).getPresenter();
+    if (presenter == null) {
+      return tracks;
+    }
+    for (UserSession.PublishedTrack published : presenter.getPublishedTracks()) {
+      TrackInfo info = new TrackInfo();
+      info.id = published.getTrack().getId();
+      info.kind = published.getTrack().getKind();
+      for (MediaStream stream : published.getStreams()) {
+        info.streams.add(stream.getId());
+      }
+      tracks.add(info);
+    }
+    return tracks;
+  }
+
+  /**
+   * Changes the presenter tracks a viewer receives. Tracks the viewer is no longer subscribed to
+   * are removed from its peer connection, and the viewer is renegotiated if needed.
+   *
+   * @param session
+   *          the viewer session
+   * @param kinds
+   *          comma separated track kinds (audio, video), or empty for all of them
+   * @param streams
+   *          comma separated stream ids, as returned by {@link #getTracks(Session)}, or empty
+   *          for all
+   */
+  @JsonRpcMethod
+  public void subscribe(@Named final Session session, @Named("kinds") String kinds,
+      @Named("streams") String streams) {
+    Room room = getRoom(session);
+
+    synchronized (room) {
+      UserSession viewer = clients.get(session.getSessionId());
+      UserSession presenter = room.getPresenter();
+      if (viewer == null || viewer.equals(presenter)) {
+        return;
+      }
+
+      viewer.setSubscription(TrackSubscription.parse(kinds, streams));
+      if (presenter != null && presenter.updateSubscriber(viewer)) {
+        renegotiate(viewer);
+      }
+    }
+  }
+
+  /**
+   * Limits the resolution a viewer of a simulcast presenter receives. The viewer gets the highest
+   * layer up to that height its bandwidth allows.
+   *
+   * @param session
+   *          the viewer session
+   * @param height
+   *          the maximum height, in pixels, or 0 to remove the limit
+   */
+  @JsonRpcMethod
+  public void setMaxResolution(@Named final Session session, @Named("height") int height) {
+    UserSession viewer = clients.get(session.getSessionId());
+    if (viewer != null) {
+      simulcastController.setMaxHeight(viewer, height);
     }
-    return response;
   }
 
   /**
@@ -171,31 +428,49 @@ public class PeerConnectionDemoHandler extends TypeDefaultJsonRpcHandler {
    * @throws IOException
    */
   @JsonRpcMethod
-  public synchronized void processAnswer(@Named final Session session,
+  public void processAnswer(@Named final Session session,
       @Named("sdpAnswer") String sdpAnswer) {
 
-    UserSession viewer = clients.get(session.getSessionId());
-    viewer.processAnswer(sdpAnswer);
+    synchronized (getRoom(session)) {
+      UserSession viewer = clients.get(session.getSessionId());
+      viewer.processAnswer(sdpAnswer);
+      renegotiationScheduler.answered(viewer);
+    }
 
     log.debug("Processed viewer SDP answer:\n{}", sdpAnswer);
   }
 
   @JsonRpcMethod
-  public synchronized void stop(@Named Session session) {
-    UserSession user = clients.remove(session.getSessionId());
+  public void stop(@Named Session session) {
+    admission.release(session.getSessionId());
+    Room room = clientRooms.remove(session.getSessionId());
+    if (room == null) {
+      return;
+    }
+
+    synchronized (room) {
+      UserSession user = clients.remove(session.getSessionId());
 
-    if (user != null) {
-      user.release(user.equals(presenter));
-      if (user.equals(presenter)) {
-        presenter = null;
+      renegotiationScheduler.cancel(user);
+      simulcastController.unregister(user);
+      user.leave();
+      candidateManagers.remove(user.getEndpoint().getId());
+      user.release(user.equals(room.getPresenter()));
+
+      if (room.leave(user)) {
+        rooms.remove(room.getId(), room);
+        admission.close(room.getId());
+        log.debug("Room {} closed", room.getId());
       }
     }
+  }
 
-    if (clients.isEmpty() && (pipeline != null)) {
-      pipeline.release();
-      pipeline = null;
+  private Room getRoom(Session session) {
+    Room room = clientRooms.get(session.getSessionId());
+    if (room == null) {
+      throw new IllegalStateException("Session " + session.getSessionId() + " is not registered");
     }
-
+    return room;
   }
 
   @Override
@@ -212,6 +487,7 @@ public class PeerConnectionDemoHandler extends TypeDefaultJsonRpcHandler {
     }
 
     public void manageCandidate(RTCIceCandidate candidate) {
+      UserSession.metrics.candidateSent();
 
       try {
         synchronized (session) {
@@ -0,0 +1,119 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.peerconnection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kurento.client.MediaPipeline;
+
+/**
+ * A broadcast: its media pipeline, its presenter and its viewers.
+ * <p>
+ * Every room is locked on its own, so operations in different rooms never wait for each other.
+ * A room is closed, and its pipeline released, as soon as its last member leaves; a closed room
+ * cannot be joined again, and a new one is created instead.
+ *
+ * @since 6.5.1
+ */
+public class Room {
+
+  private final String id;
+  private final Map<String, UserSession> members = new ConcurrentHashMap<>();
+
+  private MediaPipeline pipeline;
+  private volatile UserSession presenter;
+  private boolean simulcast;
+  private boolean closed;
+
+  public Room(String id) {
+    this.id = id;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public MediaPipeline getPipeline() {
+    return pipeline;
+  }
+
+  public void setPipeline(MediaPipeline pipeline) {
+    this.pipeline = pipeline;
+  }
+
+  public UserSession getPresenter() {
+    return presenter;
+  }
+
+  public void setPresenter(UserSession presenter) {
+    this.presenter = presenter;
+  }
+
+  /**
+   * Whether the presenter publishes several simulcast encodings of its video.
+   */
+  public boolean isSimulcast() {
+    return simulcast;
+  }
+
+  public void setSimulcast(boolean simulcast) {
+    this.simulcast = simulcast;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  public void join(UserSession user) {
+    members.put(user.getSession().getSessionId(), user);
+  }
+
+  /**
+   * Removes a member. If it was the last one, the room is closed and its pipeline released.
+   *
+   * @return whether the room has been closed
+   */
+  public boolean leave(UserSession user) {
+    members.remove(user.getSession().getSessionId());
+    if (user.equals(presenter)) {
+      presenter = null;
+    }
+    if (!members.isEmpty()) {
+      return false;
+    }
+
+    closed = true;
+    if (pipeline != null) {
+      pipeline.release();
+      pipeline = null;
+    }
+    return true;
+  }
+
+  public List<UserSession> getViewers() {
+    List<UserSession> viewers = new ArrayList<>(members.values());
+    viewers.remove(presenter);
+    return viewers;
+  }
+
+  public int getViewerCount() {
+    return members.size() - (presenter != null ? 1 : 0);
+  }
+
+}
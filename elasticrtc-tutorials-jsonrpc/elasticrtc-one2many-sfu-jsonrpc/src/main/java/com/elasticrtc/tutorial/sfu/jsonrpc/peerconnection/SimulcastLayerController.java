@@ -0,0 +1,289 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.peerconnection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaType;
+import org.kurento.client.RTCOutboundRTPStreamStats;
+import org.kurento.client.Stats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Chooses the simulcast layer forwarded to each viewer of a simulcast presenter.
+ * <p>
+ * The layers published by the presenter are listed in {@code sfu.simulcast.layers}, as
+ * {@code height:bitrate} pairs. Every {@code sfu.simulcast.intervalMillis}, the REMB estimation of
+ * each viewer is sampled, and the viewer gets the highest layer that fits in its bandwidth with
+ * {@code sfu.simulcast.headroom} to spare and is not taller than the resolution it requested.
+ * Viewers drop to a lower layer on the first sample that does not fit, and climb one layer after
+ * {@code sfu.simulcast.upSamples} consecutive samples with enough headroom.
+ * <p>
+ * The layer is applied by capping the video send bandwidth of the viewer peer connection to the
+ * layer bitrate, so the media server forwards the encoding that fits in it.
+ *
+ * @since 6.5.1
+ */
+public class SimulcastLayerController {
+
+  private static final Logger log = LoggerFactory.getLogger(SimulcastLayerController.class);
+
+  @Value("${sfu.simulcast.layers:180:150000,360:500000,720:1500000}")
+  private String layersConfig;
+
+  @Value("${sfu.simulcast.intervalMillis:2000}")
+  private long intervalMillis;
+
+  @Value("${sfu.simulcast.headroom:1.2}")
+  private double headroom;
+
+  @Value("${sfu.simulcast.upSamples:3}")
+  private int upSamples;
+
+  private List<Layer> layers;
+
+  private final Map<UserSession, ViewerState> viewers = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private final Counter upSwitches = Metrics.counter("sfu.simulcast.switches", "direction", "up");
+  private final Counter downSwitches =
+      Metrics.counter("sfu.simulcast.switches", "direction", "down");
+
+  public static class Layer {
+
+    private final int height;
+    private final int bitrate;
+
+    Layer(int height, int bitrate) {
+      this.height = height;
+      this.bitrate = bitrate;
+    }
+
+    public int getHeight() {
+      return height;
+    }
+
+    /** Bitrate of the layer, in bps. */
+    public int getBitrate() {
+      return bitrate;
+    }
+  }
+
+  private class ViewerState {
+    /** Tallest layer requested by the viewer, or 0 for any. */
+    int maxHeight;
+    int layer = -1;
+    int upCount;
+    boolean sampling;
+  }
+
+  @PostConstruct
+  public void start() {
+    List<Layer> parsed = new ArrayList<>();
+    for (String layer : layersConfig.split(",")) {
+      String[] parts = layer.trim().split(":");
+      parsed.add(new Layer(Integer.parseInt(parts[0]), Integer.parseInt(parts[1])));
+    }
+    parsed.sort((a, b) -> Integer.compare(a.bitrate, b.bitrate));
+    layers = Collections.unmodifiableList(parsed);
+
+    scheduler.scheduleWithFixedDelay(this::sample, intervalMillis, intervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  public List<Layer> getLayers() {
+    return layers;
+  }
+
+  /**
+   * Bandwidth needed to receive every layer from the presenter, in kbps.
+   */
+  public int getPresenterBandwidth() {
+    int bitrate = 0;
+    for (Layer layer : layers) {
+      bitrate += layer.bitrate;
+    }
+    return bitrate / 1000;
+  }
+
+  /**
+   * Starts selecting the layer of a viewer, beginning with the highest one allowed.
+   */
+  public void register(UserSession viewer) {
+    ViewerState state = new ViewerState();
+    synchronized (state) {
+      viewers.put(viewer, state);
+      select(viewer, state, 0);
+    }
+  }
+
+  public void unregister(UserSession viewer) {
+    viewers.remove(viewer);
+  }
+
+  /**
+   * Limits the layers a viewer can receive to the ones up to the given height, or removes the
+   * limit if it is 0.
+   */
+  public void setMaxHeight(UserSession viewer, int maxHeight) {
+    ViewerState state = viewers.get(viewer);
+    if (state == null) {
+      return;
+    }
+    synchronized (state) {
+      state.maxHeight = maxHeight;
+      // a higher limit is reached step by step, as bandwidth allows
+      select(viewer, state, 0);
+    }
+  }
+
+  private void sample() {
+    for (Map.Entry<UserSession, ViewerState> entry : viewers.entrySet()) {
+      UserSession viewer = entry.getKey();
+      ViewerState state = entry.getValue();
+
+      synchronized (state) {
+        if (state.sampling) {
+          continue;
+        }
+        state.sampling = true;
+      }
+      try {
+        viewer.getEndpoint().getStats(MediaType.VIDEO, new Continuation<Map<String, Stats>>() {
+
+          @Override
+          public void onSuccess(Map<String, Stats> stats) {
+            synchronized (state) {
+              state.sampling = false;
+              long remb = getRemb(stats);
+              if (remb > 0) {
+                select(viewer, state, remb);
+              }
+            }
+          }
+
+          @Override
+          public void onError(Throwable cause) {
+            synchronized (state) {
+              state.sampling = false;
+            }
+            log.debug("Could not sample stats of {}: {}", viewer.getSession().getSessionId(),
+                cause.getMessage());
+          }
+        });
+      } catch (RuntimeException e) {
+        // the peer connection may have been released since the viewer was registered
+        synchronized (state) {
+          state.sampling = false;
+        }
+        log.debug("Could not sample stats of {}: {}", viewer.getSession().getSessionId(),
+            e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @param remb
+   *          bandwidth estimation of the viewer, in bps, or 0 if unknown
+   */
+  private void select(UserSession viewer, ViewerState state, long remb) {
+    int cap = 0;
+    while (cap + 1 < layers.size()
+        && (state.maxHeight <= 0 || layers.get(cap + 1).height <= state.maxHeight)) {
+      cap++;
+    }
+
+    int target;
+    if (state.layer < 0) {
+      target = cap;
+    } else if (remb <= 0) {
+      target = Math.min(state.layer, cap);
+    } else {
+      target = 0;
+      while (target + 1 <= cap && layers.get(target + 1).bitrate * headroom <= remb) {
+        target++;
+      }
+    }
+
+    if (target > state.layer && state.layer >= 0) {
+      state.upCount++;
+      if (state.upCount < upSamples) {
+        return;
+      }
+      target = state.layer + 1;
+    }
+    state.upCount = 0;
+
+    if (target != state.layer) {
+      apply(viewer, state, target);
+    }
+  }
+
+  private void apply(UserSession viewer, ViewerState state, int layer) {
+    if (state.layer >= 0) {
+      (layer > state.layer ? upSwitches : downSwitches).increment();
+    }
+    state.layer = layer;
+    Layer selected = layers.get(layer);
+    log.debug("Viewer {} switched to the {}p layer", viewer.getSession().getSessionId(),
+        selected.height);
+    // asynchronous, as this runs on the Kurento client thread when called from the stats callback
+    viewer.getEndpoint().setMaxVideoSendBandwidth(selected.bitrate / 1000,
+        new Continuation<Void>() {
+          @Override
+          public void onSuccess(Void result) {
+          }
+
+          @Override
+          public void onError(Throwable cause) {
+            log.debug("Could not switch the layer of {}: {}",
+                viewer.getSession().getSessionId(), cause.getMessage());
+          }
+        });
+  }
+
+  private static long getRemb(Map<String, Stats> stats) {
+    for (Stats stat : stats.values()) {
+      if (stat instanceof RTCOutboundRTPStreamStats) {
+        return ((RTCOutboundRTPStreamStats) stat).getRemb();
+      }
+    }
+    return 0;
+  }
+
+}
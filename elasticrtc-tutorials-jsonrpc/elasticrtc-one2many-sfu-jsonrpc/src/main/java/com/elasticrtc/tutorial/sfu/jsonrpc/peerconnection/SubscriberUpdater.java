@@ -0,0 +1,117 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.peerconnection;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Adds the tracks published by a presenter to the peer connections of its subscribers, out of the
+ * Kurento client event thread.
+ * <p>
+ * Updates run on {@code sfu.peerconnection.updateThreads} threads. Each subscriber has at most
+ * one update queued: as every update adds all the missing tracks, the tracks published while it
+ * waits are added in the same batch. Subscribers whose tracks changed are handed over for
+ * renegotiation. When the {@code sfu.peerconnection.updateQueueSize} queue is full, the thread
+ * submitting the update runs it, which slows down event delivery instead of queueing without
+ * limit.
+ *
+ * @since 6.5.1
+ */
+public class SubscriberUpdater {
+
+  private static final Logger log = LoggerFactory.getLogger(SubscriberUpdater.class);
+
+  @Value("${sfu.peerconnection.updateThreads:4}")
+  private int threads;
+
+  @Value("${sfu.peerconnection.updateQueueSize:500}")
+  private int queueSize;
+
+  private ThreadPoolExecutor executor;
+
+  private final Set<UserSession> queued = ConcurrentHashMap.newKeySet();
+
+  private final Counter updates = Metrics.counter("sfu.subscriber.updates");
+  private final Counter coalesced = Metrics.counter("sfu.subscriber.coalesced");
+  private final Counter callerRuns = Metrics.counter("sfu.subscriber.callerRuns");
+
+  @PostConstruct
+  public void start() {
+    RejectedExecutionHandler callerRunsPolicy = new CallerRunsPolicy();
+    executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueSize), (task, pool) -> {
+          callerRuns.increment();
+          callerRunsPolicy.rejectedExecution(task, pool);
+        });
+
+    Gauge.builder("sfu.subscriber.queue", executor, pool -> pool.getQueue().size())
+        .description("Subscriber updates waiting for a thread").register(Metrics.globalRegistry);
+  }
+
+  @PreDestroy
+  public void stop() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Updates the tracks of the given subscribers of a presenter.
+   *
+   * @param renegotiation
+   *          called with every subscriber whose tracks have changed
+   */
+  public void update(UserSession presenter, Collection<UserSession> subscribers,
+      Consumer<UserSession> renegotiation) {
+    for (UserSession subscriber : subscribers) {
+      if (!queued.add(subscriber)) {
+        coalesced.increment();
+        continue;
+      }
+      executor.execute(() -> {
+        // tracks published from now on need a new update
+        queued.remove(subscriber);
+        updates.increment();
+        try {
+          if (presenter.updateSubscriber(subscriber)) {
+            renegotiation.accept(subscriber);
+          }
+        } catch (Exception e) {
+          log.warn("Could not update the tracks of {}: {}",
+              subscriber.getSession().getSessionId(), e.getMessage());
+        }
+      });
+    }
+  }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.peerconnection;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.kurento.module.sfu.MediaStream;
+import org.kurento.module.sfu.MediaStreamTrack;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+
+/**
+ * The presenter tracks a viewer wants to receive: tracks of the given kinds ({@code audio},
+ * {@code video}) belonging to the given streams. An empty set matches everything.
+ *
+ * @since 6.5.1
+ */
+public class TrackSubscription {
+
+  public static final TrackSubscription ALL = new TrackSubscription(
+      Collections.<String> emptySet(), Collections.<String> emptySet());
+
+  private final Set<String> kinds;
+  private final Set<String> streamIds;
+
+  public TrackSubscription(Set<String> kinds, Set<String> streamIds) {
+    this.kinds = kinds;
+    this.streamIds = streamIds;
+  }
+
+  /**
+   * Builds a subscription from comma separated lists, as received from clients.
+   */
+  public static TrackSubscription parse(String kinds, String streamIds) {
+    return new TrackSubscription(split(kinds), split(streamIds));
+  }
+
+  public boolean matches(MediaStreamTrack track, List<MediaStream> streams) {
+    if (!kinds.isEmpty() && !kinds.contains(track.getKind())) {
+      return false;
+    }
+    if (streamIds.isEmpty()) {
+      return true;
+    }
+    for (MediaStream stream : streams) {
+      if (streamIds.contains(stream.getId())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Set<String> split(String list) {
+    if (Strings.isNullOrEmpty(list)) {
+      return Collections.emptySet();
+    }
+    return new HashSet<>(Splitter.on(',').trimResults().omitEmptyStrings().splitToList(list));
+  }
+
+}
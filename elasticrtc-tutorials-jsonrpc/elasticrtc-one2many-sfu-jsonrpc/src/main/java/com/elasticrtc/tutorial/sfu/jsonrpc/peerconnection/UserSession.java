@@ -16,37 +16,72 @@
 package com.elasticrtc.tutorial.sfu.jsonrpc.peerconnection;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import org.kurento.client.EventListener;
-import org.kurento.commons.exception.KurentoException;
 import org.kurento.jsonrpc.Session;
 import org.kurento.module.sfu.MediaStream;
 import org.kurento.module.sfu.MediaStreamTrack;
 import org.kurento.module.sfu.NewTrackEvent;
 import org.kurento.module.sfu.RTCPeerConnection;
 import org.kurento.module.sfu.RTCRtpReceiver;
+import org.kurento.module.sfu.RTCRtpSender;
 import org.kurento.module.sfu.RTCSdpType;
 import org.kurento.module.sfu.RTCIceCandidate;
 import org.kurento.module.sfu.RTCSessionDescription;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
+import com.elasticrtc.tutorial.sfu.jsonrpc.SfuMetrics;
 import com.google.common.base.Objects;
 
 /**
  * User session.
+ * <p>
+ * The presenter keeps the tracks it publishes and the viewers connected to it. Each viewer only
+ * gets the tracks matching its {@link TrackSubscription} added to its peer connection, so the
+ * media server does not forward the others.
+ * <p>
+ * Every SDP and track operation on the peer connection holds the lock of the session, so viewers
+ * are renegotiated in parallel but each one serially.
  *
  * @author Ivan Gracia (igracia@kurento.org)
  * @since 6.2.1
  */
 public class UserSession {
 
-  private static final Logger log = LoggerFactory.getLogger(UserSession.class);
+  static final SfuMetrics metrics = new SfuMetrics("peerconnection");
 
   private final Session session;
   private RTCPeerConnection pc;
-  private final List<RTCPeerConnection> connectedPeers = new ArrayList<RTCPeerConnection>();
+  private final Set<UserSession> subscribers = ConcurrentHashMap.newKeySet();
+  private final Map<String, PublishedTrack> publishedTracks = new ConcurrentHashMap<>();
+
+  private final Map<String, RTCRtpSender> senders = new ConcurrentHashMap<>();
+  private volatile UserSession publisher;
+  private volatile TrackSubscription subscription = TrackSubscription.ALL;
+
+  public static class PublishedTrack {
+
+    private final MediaStreamTrack track;
+    private final List<MediaStream> streams;
+
+    PublishedTrack(MediaStreamTrack track, List<MediaStream> streams) {
+      this.track = track;
+      this.streams = streams;
+    }
+
+    public MediaStreamTrack getTrack() {
+      return track;
+    }
+
+    public List<MediaStream> getStreams() {
+      return streams;
+    }
+  }
 
   public UserSession(Session session) {
     this.session = session;
@@ -60,53 +95,60 @@ public class UserSession {
     return pc;
   }
 
-  public void setEndpoint(RTCPeerConnection pc) {
+  /**
+   * @param onNewTrack
+   *          called with this user whenever it publishes a new track. It runs on the Kurento
+   *          client event thread, so it should not block
+   */
+  public void setEndpoint(RTCPeerConnection pc, Consumer<UserSession> onNewTrack) {
     this.pc = pc;
     pc.addNewTrackListener(new EventListener<NewTrackEvent>() {
 
       @Override
       public void onEvent(NewTrackEvent event) {
-        for (RTCPeerConnection peer : connectedPeers) {
-          try {
-            peer.addTrack(event.getTrack().getTrack(), event.getTrack().getStreams());
-          } catch (KurentoException e) {
-            // TODO: Check if the object does not exist and remove it from the arraylist
-            log.error("Kurento exception cached {}", e.getMessage());
-          }
-        }
+        MediaStreamTrack track = event.getTrack().getTrack();
+        publishedTracks.put(track.getId(),
+            new PublishedTrack(track, event.getTrack().getStreams()));
+        onNewTrack.accept(UserSession.this);
       }
     });
   }
 
   public void addCandidate(RTCIceCandidate candidate) {
-    pc.addIceCandidate(candidate);
+    metrics.candidateReceived();
+    metrics.time(SfuMetrics.ADD_ICE_CANDIDATE, () -> pc.addIceCandidate(candidate));
   }
 
   public void release(boolean isPresenter) {
     this.pc.release();
   }
 
-  public boolean isNegotiationNeeded() {
+  public synchronized boolean isNegotiationNeeded() {
     return pc.getNegotiationNeeded();
   }
 
-  public void processAnswer(String sdpAnswer) {
-    pc.setRemoteDescription(new RTCSessionDescription(RTCSdpType.ANSWER, sdpAnswer));
+  public synchronized void processAnswer(String sdpAnswer) {
+    metrics.time(SfuMetrics.PROCESS_ANSWER, () -> pc.setRemoteDescription(
+        new RTCSessionDescription(RTCSdpType.ANSWER, sdpAnswer)));
   }
 
-  public String processOffer(String sdpOffer) {
-    pc.setRemoteDescription(new RTCSessionDescription(RTCSdpType.OFFER, sdpOffer));
-    RTCSessionDescription answer = pc.createAnswer();
-    pc.setLocalDescription(answer);
+  public synchronized String processOffer(String sdpOffer) {
+    return metrics.time(SfuMetrics.PROCESS_OFFER, () -> {
+      pc.setRemoteDescription(new RTCSessionDescription(RTCSdpType.OFFER, sdpOffer));
+      RTCSessionDescription answer = pc.createAnswer();
+      pc.setLocalDescription(answer);
 
-    return answer.getSdp();
+      return answer.getSdp();
+    });
   }
 
-  public String generateOffer() {
-    RTCSessionDescription offer = pc.createOffer();
-    pc.setLocalDescription(offer);
+  public synchronized String generateOffer() {
+    return metrics.time(SfuMetrics.GENERATE_OFFER, () -> {
+      RTCSessionDescription offer = pc.createOffer();
+      pc.setLocalDescription(offer);
 
-    return offer.getSdp();
+      return offer.getSdp();
+    });
   }
 
   @Override
@@ -122,16 +164,96 @@ public class UserSession {
     return Objects.equal(((UserSession) obj).session.getSessionId(), this.session.getSessionId());
   }
 
+  public Set<UserSession> getSubscribers() {
+    return subscribers;
+  }
+
+  public Collection<PublishedTrack> getPublishedTracks() {
+    return publishedTracks.values();
+  }
+
+  public TrackSubscription getSubscription() {
+    return subscription;
+  }
+
+  public void setSubscription(TrackSubscription subscription) {
+    this.subscription = subscription;
+  }
+
   public void connect(UserSession user) {
-    List<RTCRtpReceiver> receivers = pc.getReceivers();
-    connectedPeers.add(user.pc);
+    if (publishedTracks.isEmpty()) {
+      List<MediaStream> streams = pc.getRemoteMediaStreams();
+      for (RTCRtpReceiver receiver : pc.getReceivers()) {
+        MediaStreamTrack track = receiver.getTrack();
+        publishedTracks.putIfAbsent(track.getId(),
+            new PublishedTrack(track, getStreams(track, streams)));
+      }
+    }
+    subscribers.add(user);
+    user.publisher = this;
+    updateSubscriber(user);
+  }
 
-    List<MediaStream> streams = pc.getRemoteMediaStreams();
-    for (RTCRtpReceiver receiver : receivers) {
-      MediaStreamTrack track = receiver.getTrack();
+  /**
+   * The streams, among the given ones, that contain the track.
+   */
+  private static List<MediaStream> getStreams(MediaStreamTrack track, List<MediaStream> streams) {
+    List<MediaStream> result = new ArrayList<>();
+    for (MediaStream stream : streams) {
+      for (MediaStreamTrack streamTrack : stream.getTracks()) {
+        if (streamTrack.getId().equals(track.getId())) {
+          result.add(stream);
+          break;
+        }
+      }
+    }
+    return result;
+  }
 
-      user.pc.addTrack(track, streams);
+  public void disconnect(UserSession user) {
+    subscribers.remove(user);
+    user.publisher = null;
+    user.senders.clear();
+  }
+
+  /**
+   * Removes this user from the room, dropping the links with its publisher and its subscribers.
+   */
+  public void leave() {
+    UserSession current = publisher;
+    if (current != null) {
+      current.disconnect(this);
+    }
+    for (UserSession subscriber : subscribers) {
+      disconnect(subscriber);
+    }
+  }
+
+  /**
+   * Adds to the peer connection of a viewer the published tracks it is subscribed to, and
+   * removes the ones it is no longer subscribed to.
+   *
+   * @return whether the tracks of the viewer have changed, so it has to be renegotiated
+   */
+  public boolean updateSubscriber(UserSession user) {
+    boolean changed = false;
+
+    synchronized (user) {
+      TrackSubscription wanted = user.subscription;
+      for (PublishedTrack published : publishedTracks.values()) {
+        String trackId = published.track.getId();
+        boolean subscribed = user.senders.containsKey(trackId);
+
+        if (!subscribed && wanted.matches(published.track, published.streams)) {
+          user.senders.put(trackId, user.pc.addTrack(published.track, published.streams));
+          changed = true;
+        } else if (subscribed && !wanted.matches(published.track, published.streams)) {
+          user.pc.removeTrack(user.senders.remove(trackId));
+          changed = true;
+        }
+      }
     }
+    return changed;
   }
 
 }
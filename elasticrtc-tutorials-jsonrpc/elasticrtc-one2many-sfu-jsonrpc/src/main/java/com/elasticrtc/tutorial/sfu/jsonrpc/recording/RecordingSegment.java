@@ -0,0 +1,67 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.recording;
+
+/**
+ * Entry of a recording manifest.
+ *
+ * @since 6.5.1
+ */
+public class RecordingSegment {
+
+  private final int index;
+  private final String uri;
+  private final long startTime;
+  private long endTime;
+
+  RecordingSegment(int index, String uri, long startTime) {
+    this.index = index;
+    this.uri = uri;
+    this.startTime = startTime;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public String getUri() {
+    return uri;
+  }
+
+  /**
+   * @return the time the segment started recording, in milliseconds since the epoch
+   */
+  public long getStartTime() {
+    return startTime;
+  }
+
+  /**
+   * @return the time the segment was closed, in milliseconds since the epoch, or 0 if it is still
+   *         being recorded
+   */
+  public long getEndTime() {
+    return endTime;
+  }
+
+  public boolean isCompleted() {
+    return endTime != 0;
+  }
+
+  void complete(long endTime) {
+    this.endTime = endTime;
+  }
+
+}
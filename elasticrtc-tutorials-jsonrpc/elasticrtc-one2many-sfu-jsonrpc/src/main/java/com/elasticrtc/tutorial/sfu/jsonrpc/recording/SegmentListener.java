@@ -0,0 +1,29 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.recording;
+
+/**
+ * Notified every time a recording segment is closed, so it can be post-processed or uploaded
+ * while the session is still being recorded. Beans implementing this interface are picked up by
+ * {@link SegmentedRecorderFactory}.
+ *
+ * @since 6.5.1
+ */
+public interface SegmentListener {
+
+  void onSegmentCompleted(SegmentedRecorder recorder, RecordingSegment segment);
+
+}
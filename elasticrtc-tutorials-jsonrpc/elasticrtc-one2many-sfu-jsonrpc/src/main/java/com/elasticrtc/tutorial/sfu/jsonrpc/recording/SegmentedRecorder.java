@@ -0,0 +1,217 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaProfileSpecType;
+import org.kurento.client.RecorderEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Records a media element into a sequence of files, rotating to a new {@link RecorderEndpoint}
+ * when the current segment reaches the configured duration or size.
+ * <p>
+ * The next recorder is connected and started before the previous one is stopped, so consecutive
+ * segments overlap slightly instead of leaving a gap. The list of segments is kept in a manifest,
+ * written next to the recording for {@code file://} URIs, and every closed segment is handed over
+ * to the {@link SegmentListener}s.
+ * <p>
+ * The size of a segment is read from the recorded file, so size based rotation only applies to
+ * {@code file://} URIs on a filesystem shared by the media server and the application; other
+ * recordings are rotated by duration only.
+ *
+ * @since 6.5.1
+ */
+public class SegmentedRecorder {
+
+  private static final Logger log = LoggerFactory.getLogger(SegmentedRecorder.class);
+  private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+  private static final long CHECK_PERIOD_MILLIS = 1000;
+
+  private final MediaPipeline pipeline;
+  private final MediaElement source;
+  private final String baseUri;
+  private final MediaProfileSpecType mediaProfile;
+  private final long segmentMillis;
+  private final long segmentBytes;
+  private final List<SegmentListener> listeners;
+
+  private final List<RecordingSegment> segments = new ArrayList<>();
+  private final ScheduledFuture<?> rotationCheck;
+
+  private RecorderEndpoint recorder;
+  private RecordingSegment current;
+
+  SegmentedRecorder(MediaPipeline pipeline, MediaElement source, String baseUri,
+      MediaProfileSpecType mediaProfile, long segmentMillis, long segmentBytes,
+      List<SegmentListener> listeners, ScheduledExecutorService scheduler) {
+    this.pipeline = pipeline;
+    this.source = source;
+    this.baseUri = baseUri;
+    this.mediaProfile = mediaProfile;
+    this.segmentMillis = segmentMillis;
+    this.segmentBytes = segmentBytes;
+    this.listeners = listeners;
+
+    startSegment();
+    this.rotationCheck = scheduler.scheduleWithFixedDelay(this::checkRotation,
+        CHECK_PERIOD_MILLIS, CHECK_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized List<RecordingSegment> getSegments() {
+    return Collections.unmodifiableList(new ArrayList<>(segments));
+  }
+
+  public String getBaseUri() {
+    return baseUri;
+  }
+
+  /**
+   * Stops recording and closes the last segment.
+   */
+  public void stop() {
+    rotationCheck.cancel(false);
+    RecordingSegment last;
+
+    synchronized (this) {
+      if (recorder == null) {
+        return;
+      }
+      last = current;
+      stopRecorder(recorder, last);
+      recorder = null;
+      current = null;
+    }
+    completed(last);
+  }
+
+  private void checkRotation() {
+    RecordingSegment previous;
+
+    synchronized (this) {
+      if (recorder == null || !isSegmentFull()) {
+        return;
+      }
+      RecorderEndpoint previousRecorder = recorder;
+      previous = current;
+      try {
+        startSegment();
+      } catch (Exception e) {
+        log.warn("Could not start segment {} of {}: {}", segments.size(), baseUri,
+            e.getMessage());
+        return;
+      }
+      stopRecorder(previousRecorder, previous);
+    }
+    completed(previous);
+  }
+
+  private boolean isSegmentFull() {
+    if (segmentMillis > 0 && System.currentTimeMillis() - current.getStartTime() >= segmentMillis) {
+      return true;
+    }
+    File file = toLocalFile(current.getUri());
+    return segmentBytes > 0 && file != null && file.length() >= segmentBytes;
+  }
+
+  private void startSegment() {
+    String uri = segmentUri(segments.size());
+    RecorderEndpoint next = new RecorderEndpoint.Builder(pipeline, uri)
+        .withMediaProfile(mediaProfile).build();
+    source.connect(next);
+    next.record();
+
+    recorder = next;
+    current = new RecordingSegment(segments.size(), uri, System.currentTimeMillis());
+    segments.add(current);
+    writeManifest();
+  }
+
+  private void stopRecorder(RecorderEndpoint recorder, RecordingSegment segment) {
+    try {
+      recorder.stop();
+      recorder.release();
+    } catch (Exception e) {
+      log.warn("Error releasing recorder endpoint", e);
+    }
+    segment.complete(System.currentTimeMillis());
+    writeManifest();
+  }
+
+  private void completed(RecordingSegment segment) {
+    log.debug("Completed segment {}", segment.getUri());
+    for (SegmentListener listener : listeners) {
+      try {
+        listener.onSegmentCompleted(this, segment);
+      } catch (Exception e) {
+        log.warn("Segment listener failed for {}", segment.getUri(), e);
+      }
+    }
+  }
+
+  /**
+   * Inserts the segment number before the extension: {@code file:///tmp/rec.webm} becomes
+   * {@code file:///tmp/rec-00000.webm}.
+   */
+  private String segmentUri(int index) {
+    int slash = baseUri.lastIndexOf('/');
+    int dot = baseUri.lastIndexOf('.');
+    String suffix = String.format("-%05d", index);
+    if (dot > slash) {
+      return baseUri.substring(0, dot) + suffix + baseUri.substring(dot);
+    }
+    return baseUri + suffix;
+  }
+
+  private void writeManifest() {
+    File file = toLocalFile(baseUri + ".manifest.json");
+    if (file == null) {
+      return;
+    }
+    try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      gson.toJson(segments, writer);
+    } catch (IOException e) {
+      log.warn("Could not write recording manifest {}: {}", file, e.getMessage());
+    }
+  }
+
+  private static File toLocalFile(String uri) {
+    if (!uri.startsWith("file:")) {
+      return null;
+    }
+    return new File(URI.create(uri));
+  }
+
+}
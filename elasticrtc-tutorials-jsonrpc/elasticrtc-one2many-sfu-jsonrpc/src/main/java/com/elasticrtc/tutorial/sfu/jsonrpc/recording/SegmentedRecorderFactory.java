@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.recording;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaProfileSpecType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Starts {@link SegmentedRecorder}s with the segment limits set in
+ * {@code sfu.recording.segmentSeconds} and {@code sfu.recording.segmentMegabytes}. A limit of 0
+ * disables that rotation criterion.
+ *
+ * @since 6.5.1
+ */
+public class SegmentedRecorderFactory {
+
+  @Value("${sfu.recording.segmentSeconds:300}")
+  private long segmentSeconds;
+
+  @Value("${sfu.recording.segmentMegabytes:0}")
+  private long segmentMegabytes;
+
+  @Autowired(required = false)
+  private List<SegmentListener> listeners = Collections.emptyList();
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  @PreDestroy
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  public SegmentedRecorder record(MediaPipeline pipeline, MediaElement source, String uri,
+      MediaProfileSpecType mediaProfile) {
+    return new SegmentedRecorder(pipeline, source, uri, mediaProfile, segmentSeconds * 1000,
+        segmentMegabytes * 1024 * 1024, listeners, scheduler);
+  }
+
+}
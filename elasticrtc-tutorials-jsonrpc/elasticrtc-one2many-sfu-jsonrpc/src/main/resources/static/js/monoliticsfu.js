@@ -22,6 +22,7 @@ var nStreams = 0;
 var state = null;
 var simulcast;
 var isPresenter = false;
+var speechEvents;
 
 var constraints = {
 	    audio: true,
@@ -108,6 +109,7 @@ function start() {
 		        videoFeed.src = URL.createObjectURL(stream)
 		        videoFeed.muted = true
 		        webRtcPeer = new kurentoUtils2.WebRtcPeer2.WebRtcPeer2Sendonly (options, onNegotiateWebRtcPresenterCallback);   
+		        startSpeakingDetection(stream);
 			}, function(error) {
 				setState(I_CAN_START);
 		        return console.error('Access denied to webcam', error);
@@ -226,7 +228,27 @@ function onIceCandidate(candidate) {
 	});
 }
 
+// Tells the server when the user starts speaking, to be forwarded in Last-N mode
+function startSpeakingDetection(userStream) {
+	stopSpeakingDetection();
+	speechEvents = kurentoUtils2.WebRtcPeer2.hark(userStream);
+	speechEvents.on('speaking', function() {
+		if (!webRtcPeer) return;
+		jsonrpcClient.send('speaking', {}, function(error) {
+			if (error) return console.error(error)
+		});
+	});
+}
+
+function stopSpeakingDetection() {
+	if (speechEvents) {
+		speechEvents.stop();
+		speechEvents = null;
+	}
+}
+
 function stop() {
+	stopSpeakingDetection();
 	if (webRtcPeer) {
 		console.log('Stopping video call ...');
 		setState(I_CAN_START);
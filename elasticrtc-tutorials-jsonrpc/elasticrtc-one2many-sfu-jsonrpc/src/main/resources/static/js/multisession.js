@@ -40,7 +40,8 @@ window.onload = function() {
 			},
 			rpc : {
 				requestTimeout : 15000,
-				iceCandidate : remoteOnIceCandidate
+				iceCandidate : remoteOnIceCandidate,
+				iceCandidates : remoteOnIceCandidates
 			}
 	};
 
@@ -70,6 +71,15 @@ function remoteOnIceCandidate(candidateAndUserId) {
 	});
 }
 
+function remoteOnIceCandidates(candidatesAndUserId) {
+	candidatesAndUserId.candidates.forEach(function(candidate) {
+		remoteOnIceCandidate({
+			userId : candidatesAndUserId.userId,
+			candidate : candidate
+		})
+	})
+}
+
 function start() {
 	console.log('Starting video call ...');
 
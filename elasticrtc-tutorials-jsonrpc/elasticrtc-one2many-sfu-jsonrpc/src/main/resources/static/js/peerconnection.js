@@ -21,6 +21,7 @@ var newStreams = 0
 var state = null;
 var simulcast;
 var isPresenter = false;
+var registerCallback;
 
 var constraints = {
 	    audio: true,
@@ -48,7 +49,8 @@ window.onload = function() {
 			rpc : {
 				requestTimeout : 15000,
 				iceCandidate : remoteOnIceCandidate,
-				viewerNegotiation : viewerNegotiation
+				viewerNegotiation : viewerNegotiation,
+				admission : onAdmission
 			}
 	};
 
@@ -62,14 +64,33 @@ window.onbeforeunload = function() {
 	stop()
 }
 
+// The room can be chosen with the URL hash, e.g. peerconnection.html#room1
+function getRoomId() {
+	return location.hash.substring(1)
+}
+
 function register(callback) {
-	jsonrpcClient.send('register', { simulcast : simulcast }, function(error, answer) { 
+	jsonrpcClient.send('register', { simulcast : simulcast, roomId : getRoomId() }, function(error, answer) { 
 		if (error) return setState(I_CAN_START)
-		setState(I_CAN_STOP)
-		callback(answer.type)
+		registerCallback = callback
+		onAdmission(answer)
 	});
 }
 
+// Under load viewers are queued, and the outcome arrives later as an 'admission' notification
+function onAdmission(answer) {
+	if (answer.response === 'waiting') {
+		console.info('Waiting to join the room, position ' + answer.position)
+	} else if (answer.response === 'rejected') {
+		console.error('Not admitted: ' + answer.message)
+		hideSpinner(videoFeed)
+		setState(I_CAN_START)
+	} else {
+		setState(I_CAN_STOP)
+		registerCallback(answer.type)
+	}
+}
+
 function remoteOnIceCandidate(candidate) {
 	webRtcPeer.addIceCandidate(candidate, function(error) {
 		if (error)
@@ -115,16 +136,27 @@ function start() {
 			$('#add-stream').hide();
 			$('#remove-stream').hide();
 			$('#simulcast-label').hide();
+			$('#resolution-label').show();
+			$('#tracks-label').show();
 			webRtcPeer = new kurentoUtils2.WebRtcPeer2.WebRtcPeer2Recvonly(options, onNegotiateWebRtcViewerCallback);
 		}
 	});
 }
 
+// Viewers of a simulcast presenter can limit the resolution they receive
+function setMaxResolution() {
+	var height = parseInt($('#resolution-select').val());
+	jsonrpcClient.send('setMaxResolution', { height : height }, function(error) {
+		if (error) return console.error('Could not set the maximum resolution', error);
+	});
+}
+
 function onNegotiateWebRtcPresenterCallback(error) {
 	
 	if (error) return setState(I_CAN_START)
 	
-	this.peerConnection.addStream(stream);
+	// added through the peer, so its video is prepared for simulcast when enabled
+	this.addStream(stream, simulcast);
 	
 	this.generateOffer(onSdpOfferPresenterCallback);
 }
@@ -178,11 +210,45 @@ function onNegotiateWebRtcViewerCallback(error) {
 		console.log('SDP offer received from server. Processing ...');
 
 		webRtcPeer.processOffer(answer.sdpOffer, onSdpAnswerViewerCallback);
+		getTracks();
 	});
 }
 
 function viewerNegotiation(remoteSdpOffer) {
 	webRtcPeer.processOffer(remoteSdpOffer, onSdpAnswerViewerCallback);
+	// the presenter may have added or removed streams
+	getTracks();
+}
+
+// Lists the streams published by the presenter, so the viewer can pick the one to receive
+function getTracks() {
+	jsonrpcClient.send('getTracks', {}, function(error, tracks) {
+		if (error) return console.error('Could not get the presenter tracks', error);
+
+		var select = $('#streams-select');
+		var selected = select.val();
+		select.find('option:not(:first)').remove();
+		var streams = [];
+		tracks.forEach(function(track) {
+			track.streams.forEach(function(streamId) {
+				if (streams.indexOf(streamId) < 0) {
+					streams.push(streamId);
+					select.append($('<option>').val(streamId).text('Stream ' + streamId));
+				}
+			});
+		});
+		select.val(streams.indexOf(selected) < 0 ? '' : selected);
+	});
+}
+
+// Viewers only get the presenter tracks of the kinds and streams selected. Empty means all
+function subscribe() {
+	jsonrpcClient.send('subscribe', {
+		kinds : $('#kinds-select').val(),
+		streams : $('#streams-select').val()
+	}, function(error) {
+		if (error) return console.error('Could not change the subscription', error);
+	});
 }
 
 function onAddStream(event) {
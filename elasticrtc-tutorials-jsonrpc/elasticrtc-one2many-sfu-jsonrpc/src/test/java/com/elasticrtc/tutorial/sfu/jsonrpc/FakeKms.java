@@ -0,0 +1,306 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+import org.kurento.jsonrpc.message.Request;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * In-process fake of a Kurento Media Server, for tests and benchmarks.
+ * <p>
+ * Clients created with {@link #createClient()} reach it through a local JSON-RPC client. It keeps
+ * the objects created until they, or their pipeline, are released, and answers operations with
+ * placeholder values: session ids, and SDPs naming the object that generated them. Subclasses
+ * answer other operations by overriding {@link #answer}. Every request can be delayed to simulate
+ * the round trip to a remote media server. No events are sent.
+ *
+ * @since 6.5.1
+ */
+public class FakeKms extends DefaultJsonRpcHandler<JsonObject> {
+
+  private final String name;
+  private final long latencyMillis;
+  private final boolean recording;
+
+  private final AtomicLong ids = new AtomicLong();
+  private final Map<String, String> types = new ConcurrentHashMap<>();
+  private final Map<String, String> pipelines = new ConcurrentHashMap<>();
+  private final Map<String, Set<String>> parents = new ConcurrentHashMap<>();
+  private final Set<String> released = ConcurrentHashMap.newKeySet();
+  private final List<Invocation> invocations = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicLong requests = new AtomicLong();
+
+  public static class Invocation {
+
+    private final String object;
+    private final String type;
+    private final String operation;
+    private final List<String> params;
+
+    Invocation(String object, String type, String operation, List<String> params) {
+      this.object = object;
+      this.type = type;
+      this.operation = operation;
+      this.params = params;
+    }
+
+    public String getObject() {
+      return object;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public String getOperation() {
+      return operation;
+    }
+
+    /**
+     * @return the values of the operation params, in the order they were declared
+     */
+    public List<String> getParams() {
+      return params;
+    }
+  }
+
+  /**
+   * A fake that records every operation and released object, with no latency.
+   */
+  public FakeKms(String name) {
+    this(name, 0, true);
+  }
+
+  /**
+   * @param latencyMillis
+   *          delay of every request
+   * @param recording
+   *          whether to keep the operations and released objects, which benchmarks and soak
+   *          tests leave off so the fake does not grow
+   */
+  public FakeKms(String name, long latencyMillis, boolean recording) {
+    this.name = name;
+    this.latencyMillis = latencyMillis;
+    this.recording = recording;
+  }
+
+  public KurentoClient createClient() {
+    return KurentoClient.createFromJsonRpcClient(new JsonRpcClientLocal(this));
+  }
+
+  public static String offer(String object) {
+    return "offer of " + object;
+  }
+
+  public static String answer(String object) {
+    return "answer of " + object;
+  }
+
+  @Override
+  public void handleRequest(Transaction transaction, Request<JsonObject> request)
+      throws Exception {
+    requests.incrementAndGet();
+    if (latencyMillis > 0) {
+      Thread.sleep(latencyMillis);
+    }
+
+    JsonObject params = request.getParams();
+    JsonObject result = new JsonObject();
+    switch (request.getMethod()) {
+      case "create": {
+        String type = params.get("type").getAsString();
+        String id = name + "/" + type + "_" + ids.incrementAndGet();
+        types.put(id, type);
+        JsonObject constructorParams = params.getAsJsonObject("constructorParams");
+        if (constructorParams != null && constructorParams.has("mediaPipeline")) {
+          pipelines.put(id, constructorParams.get("mediaPipeline").getAsString());
+        }
+        result.addProperty("value", id);
+        break;
+      }
+      case "invoke": {
+        String object = params.get("object").getAsString();
+        String operation = params.get("operation").getAsString();
+        JsonObject operationParams = params.has("operationParams")
+            ? params.getAsJsonObject("operationParams") : new JsonObject();
+        if (recording) {
+          invocations.add(new Invocation(object, types.get(object), operation,
+              values(operationParams)));
+        }
+        JsonElement value = answer(object, types.get(object), operation, operationParams);
+        if (value != null) {
+          result.add("value", value);
+        }
+        break;
+      }
+      case "subscribe":
+        result.addProperty("value", name + "/subscription_" + ids.incrementAndGet());
+        break;
+      case "release":
+        release(params.get("object").getAsString());
+        break;
+      default:
+        // ping, unsubscribe and the like need no answer
+    }
+    result.addProperty("sessionId", name);
+    transaction.sendResponse(result);
+  }
+
+  /**
+   * Answers an operation invoked on an object.
+   *
+   * @return the value returned by the operation, or {@code null} if it returns nothing
+   */
+  protected JsonElement answer(String object, String type, String operation,
+      JsonObject operationParams) {
+    switch (operation) {
+      case "createSession":
+        return new JsonPrimitive(object + "/session_" + ids.incrementAndGet());
+      case "generateOffer":
+        return new JsonPrimitive(offer(object));
+      case "processOffer":
+        return new JsonPrimitive(answer(object));
+      case "getMediaPipeline":
+        return new JsonPrimitive(pipelines.get(object));
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Creates an id for an object created by an operation, such as a sender added to a peer
+   * connection. The object is owned by the pipeline of its parent, and released with either of
+   * them.
+   */
+  protected String createChild(String parent, String type) {
+    String id = name + "/" + type + "_" + ids.incrementAndGet();
+    types.put(id, type);
+    addParent(id, parent);
+    String pipeline = pipelines.get(parent);
+    if (pipeline != null) {
+      pipelines.put(id, pipeline);
+    }
+    return id;
+  }
+
+  /**
+   * Makes an object created with {@link #createChild} be also released with another parent.
+   */
+  protected void addParent(String child, String parent) {
+    parents.computeIfAbsent(child, c -> ConcurrentHashMap.newKeySet()).add(parent);
+  }
+
+  /**
+   * Called for every object released, including the ones released with their pipeline or parent,
+   * so subclasses can drop the state they keep for it.
+   */
+  protected void onRelease(String object) {
+  }
+
+  private void release(String object) {
+    if (types.remove(object) == null) {
+      // already released with its pipeline or parent
+      return;
+    }
+    pipelines.remove(object);
+    parents.remove(object);
+    if (recording) {
+      released.add(object);
+    }
+    onRelease(object);
+
+    // releasing a pipeline releases its elements, and releasing an object its children
+    List<String> owned = new ArrayList<>();
+    for (Map.Entry<String, String> element : pipelines.entrySet()) {
+      if (element.getValue().equals(object)) {
+        owned.add(element.getKey());
+      }
+    }
+    for (Map.Entry<String, Set<String>> element : parents.entrySet()) {
+      if (element.getValue().contains(object)) {
+        owned.add(element.getKey());
+      }
+    }
+    for (String element : owned) {
+      release(element);
+    }
+  }
+
+  private static List<String> values(JsonObject operationParams) {
+    List<String> values = new ArrayList<>();
+    for (Map.Entry<String, JsonElement> param : operationParams.entrySet()) {
+      JsonElement value = param.getValue();
+      values.add(value.isJsonPrimitive() ? value.getAsString() : value.toString());
+    }
+    return values;
+  }
+
+  /**
+   * @return the live objects of the given type, in no particular order
+   */
+  public List<String> getObjects(String type) {
+    List<String> objects = new ArrayList<>();
+    for (Map.Entry<String, String> object : types.entrySet()) {
+      if (object.getValue().equals(type)) {
+        objects.add(object.getKey());
+      }
+    }
+    return objects;
+  }
+
+  public int getObjectCount() {
+    return types.size();
+  }
+
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  public boolean isReleased(String object) {
+    return released.contains(object);
+  }
+
+  /**
+   * @return the operations invoked on the given object, in the order they were received
+   */
+  public List<Invocation> getInvocations(String object, String operation) {
+    List<Invocation> found = new ArrayList<>();
+    synchronized (invocations) {
+      for (Invocation invocation : invocations) {
+        if (invocation.object.equals(object) && invocation.operation.equals(operation)) {
+          found.add(invocation);
+        }
+      }
+    }
+    return found;
+  }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Fake media server that also answers the operations of {@code RTCPeerConnection}.
+ * <p>
+ * Every peer connection publishes an audio and a video track in a single stream, created the
+ * first time its receivers or streams are read. Each added track gets a new sender, released with
+ * the peer connection or the track, and renegotiation is always needed. The state kept for a peer connection is dropped
+ * when it is released.
+ *
+ * @since 6.5.1
+ */
+public class FakePeerConnectionKms extends FakeKms {
+
+  private static final String[] KINDS = { "audio", "video" };
+
+  private final Map<String, JsonArray> receivers = new ConcurrentHashMap<>();
+  private final Map<String, JsonArray> streams = new ConcurrentHashMap<>();
+  private final Map<String, JsonArray> streamTracks = new ConcurrentHashMap<>();
+  private final Map<String, String> tracks = new ConcurrentHashMap<>();
+  private final Map<String, String> kinds = new ConcurrentHashMap<>();
+
+  public FakePeerConnectionKms(String name, long latencyMillis, boolean recording) {
+    super(name, latencyMillis, recording);
+  }
+
+  @Override
+  protected JsonElement answer(String object, String type, String operation,
+      JsonObject operationParams) {
+    switch (operation) {
+      case "createOffer":
+        return description("OFFER", offer(object));
+      case "createAnswer":
+        return description("ANSWER", answer(object));
+      case "getReceivers":
+        return receivers.computeIfAbsent(object, this::publish);
+      case "getRemoteMediaStreams":
+        receivers.computeIfAbsent(object, this::publish);
+        return streams.get(object);
+      case "getTracks":
+        return streamTracks.get(object);
+      case "getTrack":
+        return new JsonPrimitive(tracks.get(object));
+      case "getKind":
+        return new JsonPrimitive(kinds.get(object));
+      case "addTrack": {
+        // the sender goes away with its peer connection, or with the track it sends, as when
+        // its publisher leaves
+        String sender = createChild(object, "RTCRtpSender");
+        if (operationParams.has("track")) {
+          addParent(sender, operationParams.get("track").getAsString());
+        }
+        return new JsonPrimitive(sender);
+      }
+      case "getNegotiationNeeded":
+        return new JsonPrimitive(true);
+      default:
+        return super.answer(object, type, operation, operationParams);
+    }
+  }
+
+  @Override
+  protected void onRelease(String object) {
+    receivers.remove(object);
+    streams.remove(object);
+    streamTracks.remove(object);
+    tracks.remove(object);
+    kinds.remove(object);
+  }
+
+  private JsonArray publish(String pc) {
+    JsonArray published = new JsonArray();
+    JsonArray streamed = new JsonArray();
+    for (String kind : KINDS) {
+      String receiver = createChild(pc, "RTCRtpReceiver");
+      String track = createChild(receiver, "MediaStreamTrack");
+      tracks.put(receiver, track);
+      kinds.put(track, kind);
+      published.add(new JsonPrimitive(receiver));
+      streamed.add(new JsonPrimitive(track));
+    }
+
+    String stream = createChild(pc, "MediaStream");
+    streamTracks.put(stream, streamed);
+    JsonArray pcStreams = new JsonArray();
+    pcStreams.add(new JsonPrimitive(stream));
+    streams.put(pc, pcStreams);
+    return published;
+  }
+
+  private static JsonObject description(String type, String sdp) {
+    JsonObject description = new JsonObject();
+    description.addProperty("__module__", "sfu");
+    description.addProperty("__type__", "RTCSessionDescription");
+    description.addProperty("type", type);
+    description.addProperty("sdp", sdp);
+    return description;
+  }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.cascade;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.kurento.module.sfu.WebRtcSfu;
+
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.common.MediaServer;
+import com.elasticrtc.tutorial.sfu.jsonrpc.FakeKms;
+
+/**
+ * Cascades an SFU from a fake master media server into a fake relay one, which is the one the
+ * pool chooses.
+ *
+ * @since 6.5.1
+ */
+public class CascadedSfuTest {
+
+  private final FakeKms masterKms = new FakeKms("master");
+  private final FakeKms relayKms = new FakeKms("relay");
+
+  private WebRtcSfu master;
+  private CascadedSfu cascade;
+
+  @Before
+  public void setUp() {
+    MediaPipeline pipeline = masterKms.createClient().createMediaPipeline();
+    master = new WebRtcSfu.Builder(pipeline).build();
+
+    KurentoClient relayClient = relayKms.createClient();
+    MediaServer relayServer = new MediaServer("relay", relayClient);
+    KurentoClientPool kurento = mock(KurentoClientPool.class);
+    when(kurento.getServers()).thenReturn(Arrays.asList(
+        new MediaServer("master", masterKms.createClient()), relayServer));
+    when(kurento.choose(null)).thenReturn(relayServer);
+    when(kurento.createMediaPipeline(relayServer))
+        .thenAnswer(invocation -> relayClient.createMediaPipeline());
+
+    cascade = new CascadedSfu(master, kurento, 1, false, event -> { });
+  }
+
+  @Test
+  public void placesViewersOnRelaysOverTheThreshold() {
+    assertSame(master, cascade.placeViewer());
+
+    WebRtcSfu relay = cascade.placeViewer();
+    assertNotSame(master, relay);
+    assertEquals(Collections.singletonList(relay.getId()), relayKms.getObjects("WebRtcSfu"));
+  }
+
+  @Test
+  public void bridgesTheMasterOverRtp() {
+    cascade.placeViewer();
+    cascade.placeViewer();
+
+    String relaySide = single(relayKms.getObjects("RtpEndpoint"));
+    String masterSide = single(masterKms.getObjects("RtpEndpoint"));
+
+    assertEquals(Collections.singletonList(FakeKms.offer(relaySide)),
+        params(masterKms.getInvocations(masterSide, "processOffer")));
+    assertEquals(Collections.singletonList(FakeKms.answer(masterSide)),
+        params(relayKms.getInvocations(relaySide, "processAnswer")));
+    assertEquals(Collections.singletonList(masterSide),
+        params(masterKms.getInvocations(master.getId(), "connect")));
+  }
+
+  @Test
+  public void feedsTheRtpIntoTheMasterSessionOfTheRelay() {
+    cascade.placeViewer();
+    WebRtcSfu relay = cascade.placeViewer();
+
+    String relaySide = single(relayKms.getObjects("RtpEndpoint"));
+    String feeder = single(relayKms.getObjects("WebRtcEndpoint"));
+    assertEquals(Collections.singletonList(feeder),
+        params(relayKms.getInvocations(relaySide, "connect")));
+
+    String sessionId = single(params(relayKms.getInvocations(relay.getId(),
+        "setMasterSession")));
+    assertEquals(Arrays.asList(sessionId, FakeKms.offer(feeder)),
+        single(relayKms.getInvocations(relay.getId(), "processOffer")).getParams());
+    assertEquals(Collections.singletonList(FakeKms.answer(relay.getId())),
+        params(relayKms.getInvocations(feeder, "processAnswer")));
+    assertEquals(1, relayKms.getInvocations(feeder, "gatherCandidates").size());
+  }
+
+  @Test
+  public void releasesRelaysLeftWithoutViewers() {
+    cascade.placeViewer();
+    WebRtcSfu relay = cascade.placeViewer();
+
+    String relayPipeline = single(relayKms.getObjects("MediaPipeline"));
+    String masterSide = single(masterKms.getObjects("RtpEndpoint"));
+    cascade.releaseViewer(relay);
+
+    assertTrue(relayKms.isReleased(relayPipeline));
+    assertTrue(relayKms.isReleased(relay.getId()));
+    assertTrue(masterKms.isReleased(masterSide));
+    assertEquals(0, relayKms.getObjectCount());
+
+    // the next viewer over the threshold gets a new relay
+    assertNotSame(relay, cascade.placeViewer());
+  }
+
+  private static List<String> params(List<FakeKms.Invocation> invocations) {
+    String[] params = new String[invocations.size()];
+    for (int i = 0; i < params.length; i++) {
+      params[i] = single(invocations.get(i).getParams());
+    }
+    return Arrays.asList(params);
+  }
+
+  private static <T> T single(List<T> values) {
+    assertEquals(1, values.size());
+    return values.get(0);
+  }
+
+}
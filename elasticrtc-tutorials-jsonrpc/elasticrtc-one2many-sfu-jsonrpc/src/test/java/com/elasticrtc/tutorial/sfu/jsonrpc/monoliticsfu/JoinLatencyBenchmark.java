@@ -0,0 +1,72 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.monoliticsfu;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticrtc.tutorial.sfu.jsonrpc.FakePeerConnectionKms;
+
+/**
+ * Latency of joining a {@link MonoliticSfuDemoHandler} room against its size, with a fake media
+ * server answering every request after {@link #LATENCY_MILLIS}. A join only adds the tracks
+ * missing in each direction, and the other participants are renegotiated in the background, so
+ * the latency should grow linearly with the room instead of quadratically.
+ * <p>
+ * Not run by default. Run it with {@code mvn test -Dtest=JoinLatencyBenchmark}.
+ *
+ * @since 6.5.1
+ */
+public class JoinLatencyBenchmark {
+
+  private static final Logger log = LoggerFactory.getLogger(JoinLatencyBenchmark.class);
+
+  private static final long LATENCY_MILLIS = 1;
+  private static final int MAX_ROOM_SIZE = 64;
+
+  @Test
+  public void latencyGrowsLinearlyWithTheRoom() throws Exception {
+    MonoliticRoom room = new MonoliticRoom(new FakePeerConnectionKms("kms", LATENCY_MILLIS,
+        false));
+    Map<Integer, Double> latencies = new HashMap<>();
+
+    try {
+      for (int size = 1; size <= MAX_ROOM_SIZE; size++) {
+        long start = System.nanoTime();
+        room.join("user" + size);
+        double millis = (System.nanoTime() - start) / 1e6;
+
+        if (Integer.bitCount(size) == 1) {
+          log.info("Join of participant {}: {} ms", size, String.format("%.1f", millis));
+          latencies.put(size, millis);
+        }
+      }
+    } finally {
+      room.close();
+    }
+
+    double half = latencies.get(MAX_ROOM_SIZE / 2);
+    double full = latencies.get(MAX_ROOM_SIZE);
+    assertTrue("Join latency grows faster than the room", full < half * 3);
+  }
+
+}
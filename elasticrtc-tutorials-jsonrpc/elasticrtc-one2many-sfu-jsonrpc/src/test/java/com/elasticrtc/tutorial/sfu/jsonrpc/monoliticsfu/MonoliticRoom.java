@@ -0,0 +1,105 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.monoliticsfu;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+import static org.springframework.test.util.ReflectionTestUtils.getField;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.util.Map;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.jsonrpc.Session;
+
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.sfu.jsonrpc.FakeKms;
+import com.elasticrtc.tutorial.sfu.jsonrpc.RenegotiationScheduler;
+import com.elasticrtc.tutorial.sfu.jsonrpc.ViewerFanOut;
+
+/**
+ * A {@link MonoliticSfuDemoHandler} wired as the application does, against a fake media server.
+ * Its clients publish on joining and answer every offer they are sent.
+ *
+ * @since 6.5.1
+ */
+class MonoliticRoom {
+
+  private final MonoliticSfuDemoHandler handler = new MonoliticSfuDemoHandler();
+  private final ViewerFanOut fanOut = new ViewerFanOut();
+  private final RenegotiationScheduler scheduler = new RenegotiationScheduler();
+
+  MonoliticRoom(FakeKms kms) {
+    KurentoClient client = kms.createClient();
+    KurentoClientPool kurento = mock(KurentoClientPool.class);
+    when(kurento.createMediaPipeline()).thenAnswer(invocation -> client.createMediaPipeline());
+
+    setField(fanOut, "concurrency", 8);
+    fanOut.start();
+    setField(scheduler, "fanOut", fanOut);
+    setField(scheduler, "debounceMillis", 100L);
+    setField(scheduler, "answerTimeoutMillis", 10000L);
+
+    setField(handler, "kurento", kurento);
+    setField(handler, "renegotiationScheduler", scheduler);
+    handler.init();
+  }
+
+  /**
+   * Registers a client, negotiates its offer and connects it with the rest of the room.
+   */
+  public Session join(String id) throws Exception {
+    Session session = session(id);
+    handler.register(session, false);
+    handler.negotiateWebRtc(session, FakeKms.offer(id));
+    handler.connectUsers(session);
+    return session;
+  }
+
+  public void leave(Session session) {
+    handler.stop(session);
+  }
+
+  /**
+   * @return the size of a map field of the handler, such as its clients
+   */
+  public int size(String field) {
+    return ((Map<?, ?>) getField(handler, field)).size();
+  }
+
+  public void close() {
+    scheduler.stop();
+    fanOut.stop();
+  }
+
+  private Session session(String id) throws Exception {
+    // stub only, so the mocks of long lived clients do not record every call
+    Session session = mock(Session.class, withSettings().stubOnly());
+    when(session.getSessionId()).thenReturn(id);
+    doAnswer(invocation -> {
+      if ("viewerNegotiation".equals(invocation.getArguments()[0])) {
+        handler.processAnswer(session, FakeKms.answer(id));
+      }
+      return null;
+    }).when(session).sendNotification(anyString(), any());
+    return session;
+  }
+
+}
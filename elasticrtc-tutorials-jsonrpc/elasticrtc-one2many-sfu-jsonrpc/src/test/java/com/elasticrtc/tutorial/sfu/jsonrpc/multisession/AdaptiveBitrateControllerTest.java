@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.multisession;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.RTCOutboundRTPStreamStats;
+
+/**
+ * Moves of a viewer through the bitrate ladder of the {@link AdaptiveBitrateController}.
+ *
+ * @since 6.5.1
+ */
+public class AdaptiveBitrateControllerTest {
+
+  private static final int TOP = 4;
+  private static final long INTERVAL = 2000;
+  private static final long HOLD = 10000;
+
+  private static final long CONGESTED = 500000;
+  private static final long HEADROOM = 3000000;
+
+  private final AdaptiveBitrateController controller = new AdaptiveBitrateController();
+
+  private AdaptiveBitrateController.ViewerState viewer;
+  private long now;
+
+  @Before
+  public void setUp() {
+    setField(controller, "ladder", new int[] { 150000, 240000, 500000, 1000000, 2000000 });
+    setField(controller, "lossThreshold", 0.05);
+    setField(controller, "downRatio", 0.9);
+    setField(controller, "upRatio", 1.15);
+    setField(controller, "downSamples", 2);
+    setField(controller, "upSamples", 4);
+    setField(controller, "holdMillis", HOLD);
+    controller.start();
+
+    viewer = controller.new ViewerState();
+  }
+
+  @Test
+  public void stepsDownAfterConsecutiveCongestedSamples() {
+    sample(CONGESTED);
+    assertEquals(TOP, viewer.level);
+
+    sample(CONGESTED);
+    assertEquals(TOP - 1, viewer.level);
+    assertEquals(AdaptiveBitrateController.ViewerPhase.HOLD, viewer.phase);
+  }
+
+  @Test
+  public void congestionDuringTheHoldDoesNotEndIt() {
+    sample(CONGESTED);
+    sample(CONGESTED);
+    long holdUntil = viewer.holdUntil;
+
+    sample(CONGESTED);
+    assertEquals(TOP - 1, viewer.level);
+
+    while (now + INTERVAL < holdUntil) {
+      sample(HEADROOM);
+      assertEquals(TOP - 1, viewer.level);
+    }
+
+    // probing up starts over once the hold expires
+    for (int i = 0; i < 4; i++) {
+      sample(HEADROOM);
+    }
+    assertEquals(TOP, viewer.level);
+  }
+
+  private void sample(long remb) {
+    RTCOutboundRTPStreamStats feedback = mock(RTCOutboundRTPStreamStats.class);
+    // no packets lost, as mocks answer 0
+    when(feedback.getRemb()).thenReturn(remb);
+
+    now += INTERVAL;
+    controller.update(viewer, feedback, TOP, now);
+  }
+
+}
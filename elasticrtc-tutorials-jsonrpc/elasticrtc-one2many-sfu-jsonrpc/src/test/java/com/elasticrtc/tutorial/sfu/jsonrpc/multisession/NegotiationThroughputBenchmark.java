@@ -0,0 +1,197 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.multisession;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.message.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.common.MediaServer;
+import com.elasticrtc.tutorial.sfu.jsonrpc.FakeKms;
+import com.elasticrtc.tutorial.sfu.jsonrpc.recording.SegmentedRecorderFactory;
+import com.google.gson.JsonObject;
+
+/**
+ * Throughput of {@code negotiateWebRtc} requests through
+ * {@link SfuMultisessionDemoHandler#handleRequest}, with the request thread pool sized from one
+ * thread up to the number of cores. Every one of {@link #CLIENTS} clients keeps a negotiation in
+ * flight, and sends the next one when the asynchronous response of the previous one arrives.
+ * <p>
+ * The fake media server answers at once, so the time measured is the work of the handler, the
+ * Kurento client and the fake, instead of waits overlapping. As the handler only hands each
+ * request over to the session of its client, the throughput should grow with the cores used.
+ * <p>
+ * Not run by default. Run it with {@code mvn test -Dtest=NegotiationThroughputBenchmark}.
+ *
+ * @since 6.5.1
+ */
+public class NegotiationThroughputBenchmark {
+
+  private static final Logger log = LoggerFactory.getLogger(NegotiationThroughputBenchmark.class);
+
+  private static final int CLIENTS = 64;
+  private static final int NEGOTIATIONS_PER_CLIENT = 100;
+
+  @Test
+  public void throughputGrowsWithCores() throws Exception {
+    int cores = Runtime.getRuntime().availableProcessors();
+    measure(1); // warm up
+
+    double single = measure(1);
+    double last = single;
+    for (int threads = 2; threads <= cores; threads *= 2) {
+      last = measure(threads);
+    }
+    if (cores > 1) {
+      assertTrue("Negotiations do not scale with the cores", last > single * 1.5);
+    }
+  }
+
+  private double measure(int threads) throws Exception {
+    FakeKms kms = new FakeKms("kms", 0, false);
+    MediaServer server = new MediaServer("kms", kms.createClient());
+    KurentoClientPool kurento = mock(KurentoClientPool.class, withSettings().stubOnly());
+    when(kurento.select(null)).thenReturn(server);
+
+    // with no pre-built pipelines, each client builds its own on registration
+    SfuPool sfuPool = new SfuPool();
+    IceCandidateCoalescer coalescer = new IceCandidateCoalescer();
+    SegmentedRecorderFactory recorderFactory = new SegmentedRecorderFactory();
+
+    SfuMultisessionDemoHandler handler = new SfuMultisessionDemoHandler();
+    setField(handler, "kurentoClients", kurento);
+    setField(handler, "bitrateController",
+        mock(AdaptiveBitrateController.class, withSettings().stubOnly()));
+    setField(handler, "candidateCoalescer", coalescer);
+    setField(handler, "sfuPool", sfuPool);
+    setField(handler, "recorderFactory", recorderFactory);
+
+    ExecutorService requestThreads = Executors.newFixedThreadPool(threads);
+    CountDownLatch done = new CountDownLatch(CLIENTS);
+    AtomicReference<Throwable> error = new AtomicReference<>();
+
+    List<Client> clients = new ArrayList<>();
+    for (int i = 0; i < CLIENTS; i++) {
+      Client client = new Client("client" + i, handler, requestThreads, done, error);
+      handler.register(client.session, false);
+      clients.add(client);
+    }
+
+    long startNanos = System.nanoTime();
+    for (Client client : clients) {
+      client.next();
+    }
+    assertTrue("Negotiations not completed in time", done.await(5, TimeUnit.MINUTES));
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+    requestThreads.shutdown();
+    for (Client client : clients) {
+      handler.stop(client.session);
+    }
+    sfuPool.stop();
+    coalescer.stop();
+    recorderFactory.stop();
+    if (error.get() != null) {
+      throw new AssertionError("Negotiation failed", error.get());
+    }
+
+    double throughput = CLIENTS * NEGOTIATIONS_PER_CLIENT / seconds;
+    log.info("{} request threads: {} negotiations per second", threads,
+        String.format("%.1f", throughput));
+    return throughput;
+  }
+
+  /**
+   * A client sending its negotiations one after another, each as soon as the previous one has
+   * been answered.
+   */
+  private static class Client {
+
+    final Session session;
+    final Transaction transaction;
+    final SfuMultisessionDemoHandler handler;
+    final ExecutorService requestThreads;
+    final CountDownLatch done;
+    final AtomicReference<Throwable> error;
+    int negotiations;
+
+    Client(String id, SfuMultisessionDemoHandler handler, ExecutorService requestThreads,
+        CountDownLatch done, AtomicReference<Throwable> error) throws Exception {
+      this.handler = handler;
+      this.requestThreads = requestThreads;
+      this.done = done;
+      this.error = error;
+
+      // stub only, as the mocks would otherwise record every request
+      session = mock(Session.class, withSettings().stubOnly());
+      when(session.getSessionId()).thenReturn(id);
+      transaction = mock(Transaction.class, withSettings().stubOnly());
+      when(transaction.getSession()).thenReturn(session);
+      doAnswer(invocation -> {
+        next();
+        return null;
+      }).when(transaction).sendResponse(any());
+      doAnswer(invocation -> {
+        fail((Throwable) invocation.getArguments()[0]);
+        return null;
+      }).when(transaction).sendError(any(Throwable.class));
+    }
+
+    void fail(Throwable cause) {
+      error.compareAndSet(null, cause);
+      done.countDown();
+    }
+
+    void next() {
+      if (negotiations == NEGOTIATIONS_PER_CLIENT) {
+        done.countDown();
+        return;
+      }
+      JsonObject params = new JsonObject();
+      params.addProperty("userId", "viewer" + negotiations++);
+      Request<JsonObject> request = new Request<>("negotiateWebRtc", params);
+
+      requestThreads.execute(() -> {
+        try {
+          handler.handleRequest(transaction, request);
+        } catch (Exception e) {
+          fail(e);
+        }
+      });
+    }
+  }
+
+}
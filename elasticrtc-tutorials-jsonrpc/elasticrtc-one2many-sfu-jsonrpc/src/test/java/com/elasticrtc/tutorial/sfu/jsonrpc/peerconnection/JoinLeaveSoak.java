@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.peerconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.kurento.jsonrpc.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticrtc.tutorial.sfu.jsonrpc.FakePeerConnectionKms;
+
+/**
+ * Joins and leaves a {@link PeerConnectionDemoHandler} room as a viewer {@link #CYCLES} times,
+ * while the presenter and a few viewers stay in it, against a fake media server that keeps nothing
+ * but its live objects. Leaving viewers must be dropped from the subscribers of the presenter, the
+ * room and the admission, so the heap used after the cycles is the same as before them.
+ * <p>
+ * Not run by default, as it takes a while. Run it with {@code mvn test -Dtest=JoinLeaveSoak}.
+ *
+ * @since 6.5.1
+ */
+public class JoinLeaveSoak {
+
+  private static final Logger log = LoggerFactory.getLogger(JoinLeaveSoak.class);
+
+  private static final int RESIDENTS = 3;
+  private static final int WARM_UP_CYCLES = 10_000;
+  private static final int CYCLES = 100_000;
+  private static final long MAX_HEAP_GROWTH = 8 * 1024 * 1024;
+
+  @Test
+  public void heapStaysFlat() throws Exception {
+    FakePeerConnectionKms kms = new FakePeerConnectionKms("kms", 0, false);
+    PeerConnectionRoom room = new PeerConnectionRoom(kms);
+
+    try {
+      List<Session> residents = new ArrayList<>();
+      residents.add(room.present("presenter"));
+      for (int i = 0; i < RESIDENTS; i++) {
+        residents.add(room.view("resident" + i));
+      }
+
+      cycle(room, 0, WARM_UP_CYCLES);
+      int objects = kms.getObjectCount();
+      long before = usedHeap();
+
+      cycle(room, WARM_UP_CYCLES, CYCLES);
+      long after = usedHeap();
+      log.info("Heap used before {} join/leave cycles: {} KiB, after: {} KiB", CYCLES,
+          before / 1024, after / 1024);
+
+      assertEquals(RESIDENTS + 1, room.size("clients"));
+      assertEquals(RESIDENTS + 1, room.size("clientRooms"));
+      assertEquals(RESIDENTS + 1, room.size("candidateManagers"));
+      assertEquals(objects, kms.getObjectCount());
+      assertTrue("Heap grew by " + (after - before) + " bytes", after - before < MAX_HEAP_GROWTH);
+
+      for (Session resident : residents) {
+        room.leave(resident);
+      }
+      assertEquals(0, room.size("rooms"));
+      assertEquals(0, kms.getObjectCount());
+    } finally {
+      room.close();
+    }
+  }
+
+  private static void cycle(PeerConnectionRoom room, int first, int count) throws Exception {
+    for (int i = first; i < first + count; i++) {
+      room.leave(room.view("visitor" + i));
+    }
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    // let the answer timeouts cancelled by the last viewers expire
+    Thread.sleep(PeerConnectionRoom.ANSWER_TIMEOUT_MILLIS + 1000);
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+}
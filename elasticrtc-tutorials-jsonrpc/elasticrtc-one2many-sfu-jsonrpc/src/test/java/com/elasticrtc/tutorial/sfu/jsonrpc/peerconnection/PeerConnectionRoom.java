@@ -0,0 +1,141 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+
+package com.elasticrtc.tutorial.sfu.jsonrpc.peerconnection;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+import static org.springframework.test.util.ReflectionTestUtils.getField;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.util.Map;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.jsonrpc.Session;
+
+import com.elasticrtc.tutorial.common.AdmissionController;
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.common.MediaServer;
+import com.elasticrtc.tutorial.sfu.jsonrpc.FakeKms;
+import com.elasticrtc.tutorial.sfu.jsonrpc.RenegotiationScheduler;
+import com.elasticrtc.tutorial.sfu.jsonrpc.ViewerFanOut;
+
+/**
+ * A {@link PeerConnectionDemoHandler} room wired as the application does, against a fake media
+ * server. Admission has no limits, so every viewer is admitted at once. The presenter publishes on
+ * joining, and viewers answer every offer they are sent.
+ *
+ * @since 6.5.1
+ */
+class PeerConnectionRoom {
+
+  static final long ANSWER_TIMEOUT_MILLIS = 1000;
+
+  private static final String ROOM = "soak";
+
+  private final PeerConnectionDemoHandler handler = new PeerConnectionDemoHandler();
+  private final ViewerFanOut fanOut = new ViewerFanOut();
+  private final RenegotiationScheduler scheduler = new RenegotiationScheduler();
+  private final SubscriberUpdater subscriberUpdater = new SubscriberUpdater();
+  private final SimulcastLayerController simulcastController = new SimulcastLayerController();
+  private final AdmissionController admission = new AdmissionController();
+
+  PeerConnectionRoom(FakeKms kms) {
+    KurentoClient client = kms.createClient();
+    MediaServer server = new MediaServer("kms", client);
+    // stub only, as admission reads its servers on every join
+    KurentoClientPool kurento = mock(KurentoClientPool.class, withSettings().stubOnly());
+    when(kurento.choose(anyString())).thenReturn(server);
+    when(kurento.createMediaPipeline(server))
+        .thenAnswer(invocation -> client.createMediaPipeline());
+
+    setField(fanOut, "concurrency", 8);
+    fanOut.start();
+    setField(scheduler, "fanOut", fanOut);
+    setField(scheduler, "debounceMillis", 100L);
+    // cancelled answer timeouts keep their viewer until they expire, so keep them short
+    setField(scheduler, "answerTimeoutMillis", ANSWER_TIMEOUT_MILLIS);
+
+    setField(subscriberUpdater, "threads", 4);
+    setField(subscriberUpdater, "queueSize", 500);
+    subscriberUpdater.start();
+
+    // no limits, and no servers to sample: every viewer is admitted at once
+    setField(admission, "kurento", kurento);
+
+    setField(handler, "kurento", kurento);
+    setField(handler, "renegotiationScheduler", scheduler);
+    setField(handler, "subscriberUpdater", subscriberUpdater);
+    setField(handler, "simulcastController", simulcastController);
+    setField(handler, "admission", admission);
+  }
+
+  /**
+   * Registers the presenter of the room and negotiates its offer.
+   */
+  public Session present(String id) throws Exception {
+    Session session = session(id);
+    handler.register(session, false, ROOM);
+    handler.negotiateWebRtc(session, FakeKms.offer(id));
+    return session;
+  }
+
+  /**
+   * Registers a viewer and negotiates the tracks of the presenter it gets on joining.
+   */
+  public Session view(String id) throws Exception {
+    Session session = session(id);
+    handler.register(session, false, ROOM);
+    handler.negotiateWebRtc(session, null);
+    handler.processAnswer(session, FakeKms.answer(id));
+    return session;
+  }
+
+  public void leave(Session session) {
+    handler.stop(session);
+  }
+
+  /**
+   * @return the size of a map field of the handler, such as its clients
+   */
+  public int size(String field) {
+    return ((Map<?, ?>) getField(handler, field)).size();
+  }
+
+  public void close() {
+    simulcastController.stop();
+    subscriberUpdater.stop();
+    scheduler.stop();
+    fanOut.stop();
+  }
+
+  private Session session(String id) throws Exception {
+    // stub only, so the mocks of long lived clients do not record every call
+    Session session = mock(Session.class, withSettings().stubOnly());
+    when(session.getSessionId()).thenReturn(id);
+    doAnswer(invocation -> {
+      if ("viewerNegotiation".equals(invocation.getArguments()[0])) {
+        handler.processAnswer(session, FakeKms.answer(id));
+      }
+      return null;
+    }).when(session).sendNotification(anyString(), any());
+    return session;
+  }
+
+}
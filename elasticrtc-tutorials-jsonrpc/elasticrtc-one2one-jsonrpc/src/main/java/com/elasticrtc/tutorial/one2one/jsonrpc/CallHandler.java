@@ -24,7 +24,6 @@ import java.util.concurrent.ConcurrentHashMap;
 import javax.inject.Named;
 
 import org.kurento.client.IceCandidate;
-import org.kurento.client.KurentoClient;
 import org.kurento.jsonrpc.JsonRpcMethod;
 import org.kurento.jsonrpc.Session;
 import org.kurento.jsonrpc.TypeDefaultJsonRpcHandler;
@@ -32,6 +31,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
@@ -59,7 +59,7 @@ public class CallHandler extends TypeDefaultJsonRpcHandler {
   private final Map<String, MediaSession> mediaSessions = new ConcurrentHashMap<>();
 
   @Autowired
-  private KurentoClient kurento;
+  private KurentoClientPool kurento;
 
   @Autowired
   private ClientRegistry registry;
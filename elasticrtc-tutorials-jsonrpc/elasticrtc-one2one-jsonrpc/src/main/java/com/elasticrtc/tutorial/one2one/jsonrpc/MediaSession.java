@@ -19,12 +19,13 @@ package com.elasticrtc.tutorial.one2one.jsonrpc;
 
 import java.io.IOException;
 
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+
 /**
  * Media Pipeline (WebRTC endpoints, i.e. Kurento Media Elements) and connections for the 1 to 1
  * video communication.
@@ -39,7 +40,7 @@ public class MediaSession {
   private Client caller;
   private Client callee;
 
-  public MediaSession(KurentoClient kurento, Client caller, Client callee) {
+  public MediaSession(KurentoClientPool kurento, Client caller, Client callee) {
     try {
       this.pipeline = kurento.createMediaPipeline();
       this.caller = caller;
@@ -17,7 +17,6 @@
 
 package com.elasticrtc.tutorial.one2one.jsonrpc;
 
-import org.kurento.client.KurentoClient;
 import org.kurento.jsonrpc.internal.server.config.JsonRpcConfiguration;
 import org.kurento.jsonrpc.server.JsonRpcConfigurer;
 import org.kurento.jsonrpc.server.JsonRpcHandlerRegistry;
@@ -27,6 +26,8 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+
 /**
  * One2One application bean definition and config
  *
@@ -48,8 +49,8 @@ public class One2OneApp implements JsonRpcConfigurer {
   }
 
   @Bean
-  public KurentoClient kurentoClient() {
-    return KurentoClient.create();
+  public KurentoClientPool kurentoClientPool() {
+    return new KurentoClientPool();
   }
 
   @Override
@@ -17,11 +17,12 @@
 
 package com.elasticrtc.tutorial.loopback;
 
-import org.kurento.client.KurentoClient;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+
 /**
  * Loopback demo handler
  *
@@ -32,8 +33,8 @@ import org.springframework.context.annotation.Bean;
 public class LoopbackApp {
 
   @Bean
-  public KurentoClient kurentoClient() {
-    return KurentoClient.create();
+  public KurentoClientPool kurentoClientPool() {
+    return new KurentoClientPool();
   }
 
   public static void main(String[] args) throws Exception {
@@ -21,7 +21,6 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
@@ -37,6 +36,8 @@ import org.springframework.stereotype.Controller;
 import org.springframework.web.socket.messaging.SessionConnectedEvent;
 import org.springframework.web.socket.messaging.SessionDisconnectEvent;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+
 /**
  * Protocol handler for loopback.
  *
@@ -49,7 +50,7 @@ public class LoopbackDemoHandler {
   private static final Logger log = LoggerFactory.getLogger(LoopbackDemoHandler.class);
 
   @Autowired
-  private KurentoClient kurento;
+  private KurentoClientPool kurento;
 
   @Autowired
   private SimpMessagingTemplate messagingTemplate;
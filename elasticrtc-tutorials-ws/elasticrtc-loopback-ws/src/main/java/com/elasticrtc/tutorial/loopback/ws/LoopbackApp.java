@@ -17,7 +17,6 @@
 
 package com.elasticrtc.tutorial.loopback.ws;
 
-import org.kurento.client.KurentoClient;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -25,6 +24,9 @@ import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.common.SessionSender;
+
 /**
  * Hello World (WebRTC in loobpack) main class.
  *
@@ -42,8 +44,13 @@ public class LoopbackApp implements WebSocketConfigurer {
   }
 
   @Bean
-  public KurentoClient kurentoClient() {
-    return KurentoClient.create();
+  public KurentoClientPool kurentoClientPool() {
+    return new KurentoClientPool();
+  }
+
+  @Bean
+  public SessionSender sessionSender() {
+    return new SessionSender();
   }
 
   @Override
@@ -17,23 +17,24 @@
 
 package com.elasticrtc.tutorial.loopback.ws;
 
-import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.WebRtcEndpoint;
 import org.kurento.jsonrpc.JsonUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.common.SessionSender;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
@@ -52,7 +53,10 @@ public class LoopbackSessionHandler extends TextWebSocketHandler {
   private final Logger log = LoggerFactory.getLogger(LoopbackSessionHandler.class);
 
   @Autowired
-  private KurentoClient kurento;
+  private KurentoClientPool kurento;
+
+  @Autowired
+  private SessionSender sender;
 
   private final ConcurrentHashMap<String, ClientSession> users = new ConcurrentHashMap<>();
 
@@ -112,9 +116,7 @@ public class LoopbackSessionHandler extends TextWebSocketHandler {
       response.addProperty("id", "startResponse");
       response.addProperty("sdpAnswer", sdpAnswer);
 
-      synchronized (session) {
-        session.sendMessage(new TextMessage(response.toString()));
-      }
+      sender.send(session, response);
 
       // 4. Gather ICE candidates
       webRtcEndpoint.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
@@ -123,13 +125,7 @@ public class LoopbackSessionHandler extends TextWebSocketHandler {
           JsonObject response = new JsonObject();
           response.addProperty("id", "iceCandidate");
           response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-          try {
-            synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
-            }
-          } catch (IOException e) {
-            log.error(e.getMessage());
-          }
+          sender.send(session, response);
         }
       });
       webRtcEndpoint.gatherCandidates();
@@ -139,14 +135,19 @@ public class LoopbackSessionHandler extends TextWebSocketHandler {
     }
   }
 
-  private void sendError(WebSocketSession session, String message) {
-    try {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "error");
-      response.addProperty("message", message);
-      session.sendMessage(new TextMessage(response.toString()));
-    } catch (IOException e) {
-      log.error("Exception sending message", e);
+  @Override
+  public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
+    sender.remove(session);
+    ClientSession user = users.remove(session.getId());
+    if (user != null) {
+      user.release();
     }
   }
+
+  private void sendError(WebSocketSession session, String message) {
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "error");
+    response.addProperty("message", message);
+    sender.send(session, response);
+  }
 }
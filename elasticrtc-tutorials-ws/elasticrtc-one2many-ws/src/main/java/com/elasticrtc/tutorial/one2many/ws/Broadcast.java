@@ -0,0 +1,140 @@
+/*
+ * (C) Copyright 2016 elasticRTC (https://www.elasticRTC.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.elasticrtc.tutorial.one2many.ws;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kurento.client.MediaPipeline;
+
+/**
+ * A broadcast channel: its media pipeline, its presenter and its viewers.
+ * <p>
+ * Every broadcast is locked on its own, so requests for different broadcasts never wait for each
+ * other. A broadcast is closed when its presenter leaves; a closed broadcast cannot be joined, and
+ * the next presenter with the same id starts a new one. Viewers are spread over the pipelines of
+ * a {@link RelayTree} rooted at the presenter pipeline.
+ *
+ * @since 1.0.0
+ */
+public class Broadcast {
+
+  private final String id;
+  private final Map<String, UserSession> viewers = new ConcurrentHashMap<>();
+  private final Map<String, RelayTree.Node> viewerNodes = new ConcurrentHashMap<>();
+
+  private MediaPipeline pipeline;
+  private volatile RelayTree relays;
+  private volatile UserSession presenter;
+  private boolean closed;
+
+  public Broadcast(String id) {
+    this.id = id;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public MediaPipeline getPipeline() {
+    return pipeline;
+  }
+
+  public void setPipeline(MediaPipeline pipeline) {
+    this.pipeline = pipeline;
+  }
+
+  public RelayTree getRelays() {
+    return relays;
+  }
+
+  public void setRelays(RelayTree relays) {
+    this.relays = relays;
+  }
+
+  public UserSession getPresenter() {
+    return presenter;
+  }
+
+  public void setPresenter(UserSession presenter) {
+    this.presenter = presenter;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  public boolean isPresenter(String sessionId) {
+    UserSession current = presenter;
+    return current != null && current.getSession().getId().equals(sessionId);
+  }
+
+  /**
+   * The presenter or the viewer with the given session id, if any.
+   */
+  public UserSession getUser(String sessionId) {
+    return isPresenter(sessionId) ? presenter : viewers.get(sessionId);
+  }
+
+  /**
+   * Adds a viewer, served by the given node of the relay tree.
+   */
+  public void addViewer(UserSession viewer, RelayTree.Node node) {
+    viewers.put(viewer.getSession().getId(), viewer);
+    viewerNodes.put(viewer.getSession().getId(), node);
+  }
+
+  /**
+   * Removes a viewer, releasing its endpoint and its slot in the relay tree.
+   */
+  public UserSession removeViewer(String sessionId) {
+    UserSession viewer = viewers.remove(sessionId);
+    RelayTree.Node node = viewerNodes.remove(sessionId);
+    if (viewer != null && viewer.getWebRtcEndpoint() != null) {
+      viewer.getWebRtcEndpoint().release();
+    }
+    if (node != null) {
+      relays.release(node);
+    }
+    return viewer;
+  }
+
+  public Collection<UserSession> getViewers() {
+    return viewers.values();
+  }
+
+  /**
+   * Closes the broadcast, releasing its pipelines along with every endpoint in them.
+   */
+  public void close() {
+    closed = true;
+    presenter = null;
+    viewers.clear();
+    viewerNodes.clear();
+    if (relays != null) {
+      relays.release();
+      relays = null;
+    }
+    if (pipeline != null) {
+      pipeline.release();
+      pipeline = null;
+    }
+  }
+
+}
@@ -17,30 +17,59 @@
 
 package com.elasticrtc.tutorial.one2many.ws;
 
-import java.io.IOException;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
-import org.kurento.client.KurentoClient;
-import org.kurento.client.MediaPipeline;
 import org.kurento.client.WebRtcEndpoint;
 import org.kurento.jsonrpc.JsonUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
+import com.elasticrtc.tutorial.common.AdmissionController;
+import com.elasticrtc.tutorial.common.JoinPacer;
+import com.elasticrtc.tutorial.common.KeyframeMonitor;
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.common.MediaServer;
+import com.elasticrtc.tutorial.common.SessionSender;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
+import io.micrometer.core.instrument.Metrics;
+
 /**
  * Protocol handler for 1 to N video call communication.
+ * <p>
+ * Several {@link Broadcast}s can run at the same time. The {@code presenter} and {@code viewer}
+ * messages choose one with their {@code broadcastId}, or the default one if missing, and requests
+ * are serialized per broadcast.
+ * <p>
+ * Setting {@code one2many.relay.viewersPerNode} enables the relay tree mode: once the presenter
+ * pipeline serves that many viewers, new ones are placed in child pipelines, each one feeding up
+ * to {@code one2many.relay.fanOut} children of its own.
+ * <p>
+ * Viewers go through the {@link AdmissionController}: under load they get a {@code waiting}
+ * response with their position in the queue, followed by the final one once admitted. Admitted
+ * viewers are connected to the presenter in groups by the {@link JoinPacer}, so a burst of joins
+ * costs the presenter a few keyframes instead of one per viewer.
+ * <p>
+ * Each pipeline of a broadcast keeps {@code one2many.pool.size} viewer endpoints already connected
+ * to the presenter, so most joins only process the offer and gather candidates.
  *
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @author Ivan Gracia (igracia@kurento.org)
@@ -51,13 +80,56 @@ public class CallHandler extends TextWebSocketHandler {
   private static final Logger log = LoggerFactory.getLogger(CallHandler.class);
   private static final Gson gson = new GsonBuilder().create();
 
-  private final ConcurrentHashMap<String, UserSession> viewers = new ConcurrentHashMap<>();
+  private static final String DEFAULT_BROADCAST = "default";
+  private static final String NO_SENDER =
+      "No active sender now. Become sender or . Try again later ...";
+
+  private final ConcurrentHashMap<String, Broadcast> broadcasts = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Broadcast> sessionBroadcasts = new ConcurrentHashMap<>();
+
+  @Autowired
+  private KurentoClientPool kurento;
+
+  @Autowired
+  private SessionSender sender;
+
+  @Autowired
+  private AdmissionController admission;
 
   @Autowired
-  private KurentoClient kurento;
+  private JoinPacer joinPacer;
+
+  @Autowired
+  private KeyframeMonitor keyframes;
+
+  @Value("${one2many.relay.viewersPerNode:0}")
+  private int viewersPerNode;
 
-  private MediaPipeline pipeline;
-  private UserSession presenterUserSession;
+  @Value("${one2many.relay.fanOut:4}")
+  private int fanOut;
+
+  @Value("${one2many.pool.size:2}")
+  private int poolSize;
+
+  @Value("${one2many.pool.threads:2}")
+  private int poolThreads;
+
+  private ExecutorService poolExecutor;
+
+  public CallHandler() {
+    Metrics.gauge("one2many.relay.depth", broadcasts, CallHandler::maxRelayDepth);
+    Metrics.gauge("one2many.relay.pipelines", broadcasts, CallHandler::relayCount);
+  }
+
+  @PostConstruct
+  public void start() {
+    poolExecutor = Executors.newFixedThreadPool(poolThreads);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    poolExecutor.shutdownNow();
+  }
 
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
@@ -82,14 +154,8 @@ public class CallHandler extends TextWebSocketHandler {
       case "onIceCandidate": {
         JsonObject candidate = jsonMessage.get("candidate").getAsJsonObject();
 
-        UserSession user = null;
-        if (presenterUserSession != null) {
-          if (presenterUserSession.getSession() == session) {
-            user = presenterUserSession;
-          } else {
-            user = viewers.get(session.getId());
-          }
-        }
+        Broadcast broadcast = sessionBroadcasts.get(session.getId());
+        UserSession user = broadcast != null ? broadcast.getUser(session.getId()) : null;
         if (user != null) {
           IceCandidate cand = new IceCandidate(candidate.get("candidate").getAsString(),
               candidate.get("sdpMid").getAsString(), candidate.get("sdpMLineIndex").getAsInt());
@@ -105,26 +171,54 @@ public class CallHandler extends TextWebSocketHandler {
     }
   }
 
-  private void handleErrorResponse(Throwable throwable, WebSocketSession session, String responseId)
-      throws IOException {
+  private void handleErrorResponse(Throwable throwable, WebSocketSession session,
+      String responseId) {
     stop(session);
     log.error(throwable.getMessage(), throwable);
     JsonObject response = new JsonObject();
     response.addProperty("id", responseId);
     response.addProperty("response", "rejected");
     response.addProperty("message", throwable.getMessage());
-    session.sendMessage(new TextMessage(response.toString()));
+    sender.send(session, response);
   }
 
-  private synchronized void presenter(final WebSocketSession session, JsonObject jsonMessage)
-      throws IOException {
-    if (presenterUserSession == null) {
-      presenterUserSession = new UserSession(session);
+  private void presenter(final WebSocketSession session, JsonObject jsonMessage) {
+    if (sessionBroadcasts.containsKey(session.getId())) {
+      reject(session, "presenterResponse", "You are already in a broadcast in this session.");
+      return;
+    }
 
-      pipeline = kurento.createMediaPipeline();
-      presenterUserSession.setWebRtcEndpoint(new WebRtcEndpoint.Builder(pipeline).build());
+    String id = getBroadcastId(jsonMessage);
+    while (true) {
+      Broadcast broadcast = broadcasts.computeIfAbsent(id, Broadcast::new);
+      synchronized (broadcast) {
+        // the presenter may have closed the broadcast after we got it
+        if (!broadcast.isClosed()) {
+          presenter(session, jsonMessage, broadcast);
+          return;
+        }
+      }
+      broadcasts.remove(id, broadcast);
+    }
+  }
+
+  private void presenter(final WebSocketSession session, JsonObject jsonMessage,
+      Broadcast broadcast) {
+    if (broadcast.getPresenter() == null) {
+      UserSession presenterUserSession = new UserSession(session, sender);
+      broadcast.setPresenter(presenterUserSession);
+      sessionBroadcasts.put(session.getId(), broadcast);
+
+      MediaServer host = kurento.choose(broadcast.getId());
+      broadcast.setPipeline(kurento.createMediaPipeline(host));
+      admission.setHost(broadcast.getId(), host);
+      presenterUserSession
+          .setWebRtcEndpoint(new WebRtcEndpoint.Builder(broadcast.getPipeline()).build());
 
       WebRtcEndpoint presenterWebRtc = presenterUserSession.getWebRtcEndpoint();
+      keyframes.watch(broadcast.getId(), presenterWebRtc);
+      broadcast.setRelays(new RelayTree(broadcast.getId(), broadcast.getPipeline(),
+          presenterWebRtc, kurento, viewersPerNode, fanOut, poolSize, poolExecutor));
 
       presenterWebRtc.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
 
@@ -133,13 +227,7 @@ public class CallHandler extends TextWebSocketHandler {
           JsonObject response = new JsonObject();
           response.addProperty("id", "iceCandidate");
           response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-          try {
-            synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
-            }
-          } catch (IOException e) {
-            log.debug(e.getMessage());
-          }
+          sender.send(session, response);
         }
       });
 
@@ -151,44 +239,95 @@ public class CallHandler extends TextWebSocketHandler {
       response.addProperty("response", "accepted");
       response.addProperty("sdpAnswer", sdpAnswer);
 
-      synchronized (session) {
-        presenterUserSession.sendMessage(response);
-      }
+      presenterUserSession.sendMessage(response);
       presenterWebRtc.gatherCandidates();
 
     } else {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "presenterResponse");
-      response.addProperty("response", "rejected");
-      response.addProperty("message",
+      reject(session, "presenterResponse",
           "Another user is currently acting as sender. Try again later ...");
-      session.sendMessage(new TextMessage(response.toString()));
     }
   }
 
-  private synchronized void viewer(final WebSocketSession session, JsonObject jsonMessage)
-      throws IOException {
-    if (presenterUserSession == null || presenterUserSession.getWebRtcEndpoint() == null) {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "viewerResponse");
-      response.addProperty("response", "rejected");
-      response.addProperty("message",
-          "No active sender now. Become sender or . Try again later ...");
-      session.sendMessage(new TextMessage(response.toString()));
-    } else {
-      if (viewers.containsKey(session.getId())) {
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "viewerResponse");
-        response.addProperty("response", "rejected");
-        response.addProperty("message", "You are already viewing in this session. "
-            + "Use a different browser to add additional viewers.");
-        session.sendMessage(new TextMessage(response.toString()));
+  private void viewer(final WebSocketSession session, final JsonObject jsonMessage) {
+    if (sessionBroadcasts.containsKey(session.getId())) {
+      reject(session, "viewerResponse", "You are already viewing in this session. "
+          + "Use a different browser to add additional viewers.");
+      return;
+    }
+
+    final Broadcast broadcast = broadcasts.get(getBroadcastId(jsonMessage));
+    if (broadcast == null) {
+      reject(session, "viewerResponse", NO_SENDER);
+      return;
+    }
+
+    AdmissionController.Decision decision = admission.request(broadcast.getId(), session.getId(),
+        new AdmissionController.Listener() {
+          @Override
+          public void waiting(int position) {
+            sendWaiting(session, position);
+          }
+
+          @Override
+          public void admitted() {
+            join(session, jsonMessage, broadcast);
+          }
+
+          @Override
+          public void rejected(int retryAfterSeconds) {
+            rejectBusy(session, retryAfterSeconds);
+          }
+        });
+
+    switch (decision.getState()) {
+      case ADMITTED:
+        join(session, jsonMessage, broadcast);
+        break;
+      case WAITING:
+        sendWaiting(session, decision.getPosition());
+        break;
+      default:
+        rejectBusy(session, decision.getRetryAfterSeconds());
+        break;
+    }
+  }
+
+  private void join(WebSocketSession session, JsonObject jsonMessage, Broadcast broadcast) {
+    try {
+      viewer(session, jsonMessage, broadcast);
+    } catch (Throwable t) {
+      handleErrorResponse(t, session, "viewerResponse");
+    }
+    if (!sessionBroadcasts.containsKey(session.getId())) {
+      admission.release(session.getId());
+    }
+  }
+
+  private void viewer(final WebSocketSession session, JsonObject jsonMessage,
+      Broadcast broadcast) {
+    synchronized (broadcast) {
+      UserSession presenterUserSession = broadcast.getPresenter();
+      if (broadcast.isClosed() || presenterUserSession == null
+          || broadcast.getRelays() == null) {
+        reject(session, "viewerResponse", NO_SENDER);
         return;
       }
-      UserSession viewer = new UserSession(session);
-      viewers.put(session.getId(), viewer);
 
-      WebRtcEndpoint nextWebRtc = new WebRtcEndpoint.Builder(pipeline).build();
+      RelayTree.Node node = broadcast.getRelays().place();
+      UserSession viewer = new UserSession(session, sender);
+      broadcast.addViewer(viewer, node);
+      sessionBroadcasts.put(session.getId(), broadcast);
+
+      // a session closed while its join waited may have been stopped before being put
+      if (!session.isOpen()) {
+        sessionBroadcasts.remove(session.getId(), broadcast);
+        broadcast.removeViewer(session.getId());
+        return;
+      }
+
+      WebRtcEndpoint pooledWebRtc = node.getPool().take();
+      WebRtcEndpoint nextWebRtc = pooledWebRtc != null ? pooledWebRtc
+          : new WebRtcEndpoint.Builder(node.getPipeline()).build();
 
       nextWebRtc.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
 
@@ -197,18 +336,11 @@ public class CallHandler extends TextWebSocketHandler {
           JsonObject response = new JsonObject();
           response.addProperty("id", "iceCandidate");
           response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-          try {
-            synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
-            }
-          } catch (IOException e) {
-            log.debug(e.getMessage());
-          }
+          sender.send(session, response);
         }
       });
 
       viewer.setWebRtcEndpoint(nextWebRtc);
-      presenterUserSession.getWebRtcEndpoint().connect(nextWebRtc);
       String sdpOffer = jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString();
       String sdpAnswer = nextWebRtc.processOffer(sdpOffer);
 
@@ -217,39 +349,107 @@ public class CallHandler extends TextWebSocketHandler {
       response.addProperty("response", "accepted");
       response.addProperty("sdpAnswer", sdpAnswer);
 
-      synchronized (session) {
-        viewer.sendMessage(response);
-      }
-      nextWebRtc.gatherCandidates();
+      viewer.sendMessage(response);
+
+      // media and ICE start along with the rest of the group, sharing a single keyframe
+      joinPacer.submit(broadcast.getId(), () -> {
+        if (broadcast.getUser(session.getId()) == viewer) {
+          if (pooledWebRtc == null) {
+            node.getSource().connect(nextWebRtc);
+          }
+          nextWebRtc.gatherCandidates();
+        }
+      });
     }
   }
 
-  private synchronized void stop(WebSocketSession session) throws IOException {
+  private void stop(WebSocketSession session) {
     String sessionId = session.getId();
-    if (presenterUserSession != null
-        && presenterUserSession.getSession().getId().equals(sessionId)) {
-      for (UserSession viewer : viewers.values()) {
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "stopCommunication");
-        viewer.sendMessage(response);
+    admission.release(sessionId);
+    Broadcast broadcast = sessionBroadcasts.remove(sessionId);
+    if (broadcast == null) {
+      return;
+    }
+
+    synchronized (broadcast) {
+      if (broadcast.isPresenter(sessionId)) {
+        for (UserSession viewer : broadcast.getViewers()) {
+          sessionBroadcasts.remove(viewer.getSession().getId(), broadcast);
+          JsonObject response = new JsonObject();
+          response.addProperty("id", "stopCommunication");
+          viewer.sendMessage(response);
+        }
+
+        log.info("Releasing media pipeline of broadcast {}", broadcast.getId());
+        keyframes.unwatch(broadcast.getId());
+        broadcast.close();
+        broadcasts.remove(broadcast.getId(), broadcast);
+        admission.close(broadcast.getId());
+      } else {
+        broadcast.removeViewer(sessionId);
       }
+    }
+  }
 
-      log.info("Releasing media pipeline");
-      if (pipeline != null) {
-        pipeline.release();
+  private static double maxRelayDepth(Map<String, Broadcast> broadcasts) {
+    int depth = 0;
+    for (Broadcast broadcast : broadcasts.values()) {
+      RelayTree relays = broadcast.getRelays();
+      if (relays != null) {
+        depth = Math.max(depth, relays.getDepth());
       }
-      pipeline = null;
-      presenterUserSession = null;
-    } else if (viewers.containsKey(sessionId)) {
-      if (viewers.get(sessionId).getWebRtcEndpoint() != null) {
-        viewers.get(sessionId).getWebRtcEndpoint().release();
+    }
+    return depth;
+  }
+
+  private static double relayCount(Map<String, Broadcast> broadcasts) {
+    int count = 0;
+    for (Broadcast broadcast : broadcasts.values()) {
+      RelayTree relays = broadcast.getRelays();
+      if (relays != null) {
+        count += relays.getRelayCount();
       }
-      viewers.remove(sessionId);
     }
+    return count;
+  }
+
+  private static String getBroadcastId(JsonObject jsonMessage) {
+    JsonElement broadcastId = jsonMessage.get("broadcastId");
+    if (broadcastId == null || broadcastId.isJsonNull() || broadcastId.getAsString().isEmpty()) {
+      return DEFAULT_BROADCAST;
+    }
+    return broadcastId.getAsString();
+  }
+
+  private void reject(WebSocketSession session, String responseId, String message) {
+    JsonObject response = new JsonObject();
+    response.addProperty("id", responseId);
+    response.addProperty("response", "rejected");
+    response.addProperty("message", message);
+    sender.send(session, response);
+  }
+
+  private void sendWaiting(WebSocketSession session, int position) {
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "viewerResponse");
+    response.addProperty("response", "waiting");
+    response.addProperty("position", position);
+    sender.send(session, response);
+  }
+
+  private void rejectBusy(WebSocketSession session, int retryAfterSeconds) {
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "viewerResponse");
+    response.addProperty("response", "rejected");
+    response.addProperty("message",
+        "Too many viewers right now. Try again in " + retryAfterSeconds + " seconds.");
+    response.addProperty("retryAfter", retryAfterSeconds);
+    sender.send(session, response);
   }
 
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
+    sender.remove(session);
     stop(session);
   }
 
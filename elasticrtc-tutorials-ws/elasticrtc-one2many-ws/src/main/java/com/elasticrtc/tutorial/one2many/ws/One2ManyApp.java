@@ -17,7 +17,6 @@
 
 package com.elasticrtc.tutorial.one2many.ws;
 
-import org.kurento.client.KurentoClient;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -25,6 +24,12 @@ import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 
+import com.elasticrtc.tutorial.common.AdmissionController;
+import com.elasticrtc.tutorial.common.JoinPacer;
+import com.elasticrtc.tutorial.common.KeyframeMonitor;
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.common.SessionSender;
+
 /**
  * Video call 1 to N demo (main).
  *
@@ -42,8 +47,28 @@ public class One2ManyApp implements WebSocketConfigurer {
   }
 
   @Bean
-  public KurentoClient kurentoClient() {
-    return KurentoClient.create();
+  public KurentoClientPool kurentoClientPool() {
+    return new KurentoClientPool();
+  }
+
+  @Bean
+  public SessionSender sessionSender() {
+    return new SessionSender();
+  }
+
+  @Bean
+  public AdmissionController admissionController() {
+    return new AdmissionController();
+  }
+
+  @Bean
+  public JoinPacer joinPacer() {
+    return new JoinPacer();
+  }
+
+  @Bean
+  public KeyframeMonitor keyframeMonitor() {
+    return new KeyframeMonitor();
   }
 
   @Override
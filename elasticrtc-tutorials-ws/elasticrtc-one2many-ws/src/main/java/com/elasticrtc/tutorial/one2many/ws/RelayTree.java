@@ -0,0 +1,243 @@
+/*
+ * (C) Copyright 2016 elasticRTC (https://www.elasticRTC.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.elasticrtc.tutorial.one2many.ws;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RtpEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+
+/**
+ * The pipelines serving the viewers of a broadcast, arranged as a tree.
+ * <p>
+ * The root is the presenter pipeline. Each node serves up to {@code viewersPerNode} viewers;
+ * when every node is full, a child pipeline is created under the shallowest node with less than
+ * {@code fanOut} children, on the least loaded media server. A child receives the feed of its
+ * parent through a pair of {@link RtpEndpoint}s, one in each pipeline, and collapses as soon as
+ * it has neither viewers nor children. With {@code viewersPerNode} set to 0 every viewer is served
+ * by the root, as with a single pipeline. Every node keeps a {@link ViewerEndpointPool} of
+ * {@code poolSize} endpoints connected to its source. Not thread safe: the handler calls it while
+ * holding the broadcast lock.
+ *
+ * @since 1.0.0
+ */
+public class RelayTree {
+
+  private static final Logger log = LoggerFactory.getLogger(RelayTree.class);
+
+  private final String broadcastId;
+  private final KurentoClientPool kurento;
+  private final int viewersPerNode;
+  private final int fanOut;
+  private final int poolSize;
+  private final Executor poolExecutor;
+
+  private final Node root;
+  private volatile int depth;
+  private volatile int relays;
+
+  /**
+   * A pipeline of the tree, and the element its viewers are connected to.
+   */
+  public static class Node {
+    private final Node parent;
+    private final MediaPipeline pipeline;
+    private final MediaElement source;
+    private final RtpEndpoint uplink;
+    private final ViewerEndpointPool pool;
+    private final int depth;
+    private final List<Node> children = new ArrayList<>();
+    private int viewers;
+
+    Node(Node parent, MediaPipeline pipeline, MediaElement source, RtpEndpoint uplink,
+        ViewerEndpointPool pool) {
+      this.parent = parent;
+      this.pipeline = pipeline;
+      this.source = source;
+      this.uplink = uplink;
+      this.pool = pool;
+      this.depth = parent != null ? parent.depth + 1 : 0;
+    }
+
+    public MediaPipeline getPipeline() {
+      return pipeline;
+    }
+
+    public MediaElement getSource() {
+      return source;
+    }
+
+    public ViewerEndpointPool getPool() {
+      return pool;
+    }
+  }
+
+  public RelayTree(String broadcastId, MediaPipeline pipeline, MediaElement presenter,
+      KurentoClientPool kurento, int viewersPerNode, int fanOut, int poolSize,
+      Executor poolExecutor) {
+    this.broadcastId = broadcastId;
+    this.kurento = kurento;
+    this.viewersPerNode = viewersPerNode;
+    this.fanOut = Math.max(fanOut, 1);
+    this.poolSize = poolSize;
+    this.poolExecutor = poolExecutor;
+    this.root = new Node(null, pipeline, presenter, null, createPool(pipeline, presenter));
+  }
+
+  /**
+   * Depth of the deepest node, 0 when every viewer is served by the presenter pipeline.
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Number of child pipelines in the tree.
+   */
+  public int getRelayCount() {
+    return relays;
+  }
+
+  /**
+   * Takes a viewer slot in the shallowest node with room for one, growing the tree if needed.
+   */
+  public Node place() {
+    Node target = viewersPerNode <= 0 ? root : find(node -> node.viewers < viewersPerNode);
+    if (target == null) {
+      target = addChild(find(node -> node.children.size() < fanOut));
+    }
+    target.viewers++;
+    return target;
+  }
+
+  /**
+   * Frees a viewer slot. Nodes left without viewers and children are collapsed.
+   */
+  public void release(Node node) {
+    node.viewers--;
+    while (node != root && node.viewers == 0 && node.children.isEmpty()) {
+      Node parent = node.parent;
+      parent.children.remove(node);
+      releaseNode(node);
+      node = parent;
+    }
+    updateStats();
+  }
+
+  /**
+   * Releases every child pipeline. The presenter pipeline belongs to the caller.
+   */
+  public void release() {
+    for (Node child : new ArrayList<>(root.children)) {
+      releaseSubtree(child);
+    }
+    root.children.clear();
+    root.pool.release();
+    updateStats();
+  }
+
+  private Node find(Predicate<Node> condition) {
+    Deque<Node> pending = new ArrayDeque<>();
+    pending.add(root);
+    while (!pending.isEmpty()) {
+      Node node = pending.poll();
+      if (condition.test(node)) {
+        return node;
+      }
+      pending.addAll(node.children);
+    }
+    return null;
+  }
+
+  private Node addChild(Node parent) {
+    MediaPipeline pipeline = kurento.createMediaPipeline();
+    RtpEndpoint uplink = null;
+
+    try {
+      RtpEndpoint downlink = new RtpEndpoint.Builder(pipeline).build();
+      uplink = new RtpEndpoint.Builder(parent.pipeline).build();
+
+      String sdpOffer = downlink.generateOffer();
+      String sdpAnswer = uplink.processOffer(sdpOffer);
+      downlink.processAnswer(sdpAnswer);
+
+      parent.source.connect(uplink);
+
+      Node child = new Node(parent, pipeline, downlink, uplink, createPool(pipeline, downlink));
+      parent.children.add(child);
+      updateStats();
+      log.info("Created relay at depth {} for broadcast {}", child.depth, broadcastId);
+      return child;
+    } catch (RuntimeException e) {
+      if (uplink != null) {
+        uplink.release();
+      }
+      pipeline.release();
+      throw e;
+    }
+  }
+
+  private ViewerEndpointPool createPool(MediaPipeline pipeline, MediaElement source) {
+    return new ViewerEndpointPool(broadcastId, pipeline, source, poolSize, poolExecutor);
+  }
+
+  private void releaseSubtree(Node node) {
+    for (Node child : node.children) {
+      releaseSubtree(child);
+    }
+    node.children.clear();
+    releaseNode(node);
+  }
+
+  private void releaseNode(Node node) {
+    log.info("Collapsing relay at depth {} for broadcast {}", node.depth, broadcastId);
+    node.pool.release();
+    try {
+      node.uplink.release();
+      node.pipeline.release();
+    } catch (Exception e) {
+      log.warn("Error releasing relay of broadcast {}: {}", broadcastId, e.getMessage());
+    }
+  }
+
+  private void updateStats() {
+    int maxDepth = 0;
+    int count = -1;
+    Deque<Node> pending = new ArrayDeque<>();
+    pending.add(root);
+    while (!pending.isEmpty()) {
+      Node node = pending.poll();
+      maxDepth = Math.max(maxDepth, node.depth);
+      count++;
+      pending.addAll(node.children);
+    }
+    depth = maxDepth;
+    relays = count;
+  }
+
+}
@@ -17,15 +17,13 @@
 
 package com.elasticrtc.tutorial.one2many.ws;
 
-import java.io.IOException;
-
 import org.kurento.client.IceCandidate;
 import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
+import com.elasticrtc.tutorial.common.SessionSender;
 import com.google.gson.JsonObject;
 
 /**
@@ -40,19 +38,21 @@ public class UserSession {
   private static final Logger log = LoggerFactory.getLogger(UserSession.class);
 
   private final WebSocketSession session;
+  private final SessionSender sender;
   private WebRtcEndpoint webRtcEndpoint;
 
-  public UserSession(WebSocketSession session) {
+  public UserSession(WebSocketSession session, SessionSender sender) {
     this.session = session;
+    this.sender = sender;
   }
 
   public WebSocketSession getSession() {
     return session;
   }
 
-  public void sendMessage(JsonObject message) throws IOException {
+  public void sendMessage(JsonObject message) {
     log.debug("Sending message from user with session Id '{}': {}", session.getId(), message);
-    session.sendMessage(new TextMessage(message.toString()));
+    sender.send(session, message);
   }
 
   public WebRtcEndpoint getWebRtcEndpoint() {
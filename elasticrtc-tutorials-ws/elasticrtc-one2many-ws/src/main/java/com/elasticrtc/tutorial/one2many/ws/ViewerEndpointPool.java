@@ -0,0 +1,150 @@
+/*
+ * (C) Copyright 2016 elasticRTC (https://www.elasticRTC.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.elasticrtc.tutorial.one2many.ws;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Viewer endpoints of a pipeline, built and connected to its source ahead of the viewers.
+ * <p>
+ * A viewer takes a ready endpoint, so its join only has to process the offer and gather
+ * candidates. The pool is topped up in the background, on the given executor, as endpoints are
+ * taken. When it is empty the caller builds its own endpoint, as without a pool. A size of 0
+ * disables the pool.
+ *
+ * @since 1.0.0
+ */
+public class ViewerEndpointPool {
+
+  private static final Logger log = LoggerFactory.getLogger(ViewerEndpointPool.class);
+
+  private final String broadcastId;
+  private final MediaPipeline pipeline;
+  private final MediaElement source;
+  private final int size;
+  private final Executor executor;
+
+  private final Queue<WebRtcEndpoint> ready = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger available = new AtomicInteger();
+  private volatile boolean released;
+
+  public ViewerEndpointPool(String broadcastId, MediaPipeline pipeline, MediaElement source,
+      int size, Executor executor) {
+    this.broadcastId = broadcastId;
+    this.pipeline = pipeline;
+    this.source = source;
+    this.size = size;
+    this.executor = executor;
+    fill();
+  }
+
+  /**
+   * Takes an endpoint already connected to the source, or returns null if none is ready.
+   */
+  public WebRtcEndpoint take() {
+    if (size <= 0) {
+      return null;
+    }
+    WebRtcEndpoint endpoint = ready.poll();
+    if (endpoint == null) {
+      Metrics.counter("one2many.pool.misses").increment();
+      return null;
+    }
+    Metrics.counter("one2many.pool.hits").increment();
+    available.decrementAndGet();
+    fill();
+    return endpoint;
+  }
+
+  /**
+   * Releases the endpoints not taken, and stops topping up the pool.
+   */
+  public void release() {
+    released = true;
+    WebRtcEndpoint endpoint;
+    while ((endpoint = ready.poll()) != null) {
+      available.decrementAndGet();
+      releaseEndpoint(endpoint);
+    }
+  }
+
+  private void fill() {
+    // counts the endpoints being built, so concurrent top ups never exceed the size
+    while (!released) {
+      if (available.incrementAndGet() > size) {
+        available.decrementAndGet();
+        return;
+      }
+      try {
+        executor.execute(this::add);
+      } catch (RejectedExecutionException e) {
+        available.decrementAndGet();
+        return;
+      }
+    }
+  }
+
+  private void add() {
+    WebRtcEndpoint endpoint = null;
+    try {
+      if (released) {
+        available.decrementAndGet();
+        return;
+      }
+      endpoint = new WebRtcEndpoint.Builder(pipeline).build();
+      source.connect(endpoint);
+      ready.add(endpoint);
+      if (released && ready.remove(endpoint)) {
+        available.decrementAndGet();
+        releaseEndpoint(endpoint);
+      }
+    } catch (RuntimeException e) {
+      // the pipeline may have been released meanwhile
+      available.decrementAndGet();
+      if (endpoint != null) {
+        releaseEndpoint(endpoint);
+      }
+      if (!released) {
+        log.warn("Could not add endpoint to the pool of broadcast {}: {}", broadcastId,
+            e.getMessage());
+      }
+    }
+  }
+
+  private void releaseEndpoint(WebRtcEndpoint endpoint) {
+    try {
+      endpoint.release();
+    } catch (RuntimeException e) {
+      log.debug("Error releasing pooled endpoint of broadcast {}: {}", broadcastId,
+          e.getMessage());
+    }
+  }
+
+}
@@ -27,6 +27,11 @@ window.onbeforeunload = function() {
 	ws.close();
 }
 
+// The broadcast can be chosen with the URL hash, e.g. index.html#channel1
+function getBroadcastId() {
+	return location.hash ? location.hash.substring(1) : undefined;
+}
+
 ws.onmessage = function(message) {
 	var parsedMessage = JSON.parse(message.data);
 	console.info('Received message: ' + message.data);
@@ -66,7 +71,10 @@ function presenterResponse(message) {
 }
 
 function viewerResponse(message) {
-	if (message.response != 'accepted') {
+	if (message.response == 'waiting') {
+		// the final response arrives once the server admits us
+		console.info('Waiting to join the broadcast, position ' + message.position);
+	} else if (message.response != 'accepted') {
 		var errorMsg = message.message ? message.message : 'Unknow error';
 		console.info('Call not accepted for the following reason: ' + errorMsg);
 		dispose();
@@ -104,6 +112,7 @@ function onOfferPresenter(error, offerSdp) {
 	console.info('Invoking SDP offer callback function ' + location.host);
 	var message = {
 		id : 'presenter',
+		broadcastId : getBroadcastId(),
 		sdpOffer : offerSdp
 	}
 	sendMessage(message);
@@ -135,6 +144,7 @@ function onOfferViewer(error, offerSdp) {
 	console.info('Invoking SDP offer callback function ' + location.host);
 	var message = {
 		id : 'viewer',
+		broadcastId : getBroadcastId(),
 		sdpOffer : offerSdp
 	}
 	sendMessage(message);
@@ -17,28 +17,43 @@
 
 package com.elasticrtc.tutorial.one2one.ws;
 
-import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
-import org.kurento.client.KurentoClient;
 import org.kurento.jsonrpc.JsonUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.common.SessionSender;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
 /**
  * Protocol handler for 1 to 1 video call communication.
+ * <p>
+ * When a call is accepted, the caller and callee legs are negotiated with the media server at
+ * the same time. If either fails, the call pipeline is released and both users are notified. The
+ * {@code one2one.callSetup} timer measures from the accept until both answers are sent.
  *
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @author Micael Gallego (micael.gallego@gmail.com)
@@ -53,11 +68,29 @@ public class CallHandler extends TextWebSocketHandler {
   private final ConcurrentHashMap<String, CallMediaPipeline> pipelines = new ConcurrentHashMap<>();
 
   @Autowired
-  private KurentoClient kurento;
+  private KurentoClientPool kurento;
+
+  @Autowired
+  private SessionSender sender;
 
   @Autowired
   private UserRegistry registry;
 
+  @Value("${one2one.setup.threads:8}")
+  private int setupThreads;
+
+  private ExecutorService setupExecutor;
+
+  @PostConstruct
+  public void start() {
+    setupExecutor = Executors.newFixedThreadPool(setupThreads);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    setupExecutor.shutdownNow();
+  }
+
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
     JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
@@ -104,21 +137,21 @@ public class CallHandler extends TextWebSocketHandler {
     }
   }
 
-  private void handleErrorResponse(Throwable throwable, WebSocketSession session, String responseId)
-      throws IOException {
+  private void handleErrorResponse(Throwable throwable, WebSocketSession session,
+      String responseId) {
     stop(session);
     log.error(throwable.getMessage(), throwable);
     JsonObject response = new JsonObject();
     response.addProperty("id", responseId);
     response.addProperty("response", "rejected");
     response.addProperty("message", throwable.getMessage());
-    session.sendMessage(new TextMessage(response.toString()));
+    sender.send(session, response);
   }
 
-  private void register(WebSocketSession session, JsonObject jsonMessage) throws IOException {
+  private void register(WebSocketSession session, JsonObject jsonMessage) {
     String name = jsonMessage.getAsJsonPrimitive("name").getAsString();
 
-    UserSession caller = new UserSession(session, name);
+    UserSession caller = new UserSession(session, name, sender);
     String responseMsg = "accepted";
     if (name.isEmpty()) {
       responseMsg = "rejected: empty user name";
@@ -134,7 +167,7 @@ public class CallHandler extends TextWebSocketHandler {
     caller.sendMessage(response);
   }
 
-  private void call(UserSession caller, JsonObject jsonMessage) throws IOException {
+  private void call(UserSession caller, JsonObject jsonMessage) {
     String to = jsonMessage.get("to").getAsString();
     String from = jsonMessage.get("from").getAsString();
     JsonObject response = new JsonObject();
@@ -157,8 +190,7 @@ public class CallHandler extends TextWebSocketHandler {
     }
   }
 
-  private void incomingCallResponse(final UserSession callee, JsonObject jsonMessage)
-      throws IOException {
+  private void incomingCallResponse(final UserSession callee, JsonObject jsonMessage) {
     String callResponse = jsonMessage.get("callResponse").getAsString();
     String from = jsonMessage.get("from").getAsString();
     final UserSession calleer = registry.getByName(from);
@@ -167,7 +199,10 @@ public class CallHandler extends TextWebSocketHandler {
     if ("accept".equals(callResponse)) {
       log.debug("Accepted call from '{}' to '{}'", from, to);
 
+      Timer.Sample setup = Timer.start(Metrics.globalRegistry);
       CallMediaPipeline pipeline = null;
+      CompletableFuture<String> calleeLeg = null;
+      boolean answered = false;
       try {
         pipeline = new CallMediaPipeline(kurento);
         pipelines.put(calleer.getSessionId(), pipeline);
@@ -181,13 +216,7 @@ public class CallHandler extends TextWebSocketHandler {
                 JsonObject response = new JsonObject();
                 response.addProperty("id", "iceCandidate");
                 response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-                try {
-                  synchronized (callee.getSession()) {
-                    callee.getSession().sendMessage(new TextMessage(response.toString()));
-                  }
-                } catch (IOException e) {
-                  log.debug(e.getMessage());
-                }
+                sender.send(callee.getSession(), response);
               }
             });
 
@@ -200,44 +229,56 @@ public class CallHandler extends TextWebSocketHandler {
                 JsonObject response = new JsonObject();
                 response.addProperty("id", "iceCandidate");
                 response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-                try {
-                  synchronized (calleer.getSession()) {
-                    calleer.getSession().sendMessage(new TextMessage(response.toString()));
-                  }
-                } catch (IOException e) {
-                  log.debug(e.getMessage());
-                }
+                sender.send(calleer.getSession(), response);
               }
             });
 
+        final CallMediaPipeline call = pipeline;
         String calleeSdpOffer = jsonMessage.get("sdpOffer").getAsString();
-        String calleeSdpAnswer = pipeline.generateSdpAnswerForCallee(calleeSdpOffer);
-        JsonObject startCommunication = new JsonObject();
-        startCommunication.addProperty("id", "startCommunication");
-        startCommunication.addProperty("sdpAnswer", calleeSdpAnswer);
+        String callerSdpOffer = calleer.getSdpOffer();
 
-        synchronized (callee) {
-          callee.sendMessage(startCommunication);
+        // the callee leg runs in the background while this thread negotiates the caller leg
+        calleeLeg = CompletableFuture
+            .supplyAsync(() -> call.generateSdpAnswerForCallee(calleeSdpOffer), setupExecutor);
+        String callerSdpAnswer = call.generateSdpAnswerForCaller(callerSdpOffer);
+        String calleeSdpAnswer;
+        try {
+          calleeSdpAnswer = calleeLeg.join();
+        } catch (CompletionException e) {
+          throw e.getCause();
         }
 
-        pipeline.getCalleeWebRtcEp().gatherCandidates();
+        JsonObject startCommunication = new JsonObject();
+        startCommunication.addProperty("id", "startCommunication");
+        startCommunication.addProperty("sdpAnswer", calleeSdpAnswer);
+        callee.sendMessage(startCommunication);
 
-        String callerSdpOffer = registry.getByName(from).getSdpOffer();
-        String callerSdpAnswer = pipeline.generateSdpAnswerForCaller(callerSdpOffer);
         JsonObject response = new JsonObject();
         response.addProperty("id", "callResponse");
         response.addProperty("response", "accepted");
         response.addProperty("sdpAnswer", callerSdpAnswer);
+        calleer.sendMessage(response);
 
-        synchronized (calleer) {
-          calleer.sendMessage(response);
-        }
+        setup.stop(Metrics.timer("one2one.callSetup", "outcome", "accepted"));
+        answered = true;
 
+        pipeline.getCalleeWebRtcEp().gatherCandidates();
         pipeline.getCallerWebRtcEp().gatherCandidates();
 
       } catch (Throwable t) {
         log.error(t.getMessage(), t);
+        if (!answered) {
+          setup.stop(Metrics.timer("one2one.callSetup", "outcome", "failed"));
+        }
 
+        if (calleeLeg != null) {
+          // let the callee leg finish with the pipeline before releasing it under its feet
+          try {
+            calleeLeg.join();
+          } catch (CompletionException e) {
+            log.debug("Callee leg also failed: {}", e.getCause().getMessage());
+          }
+        }
         if (pipeline != null) {
           pipeline.release();
         }
@@ -263,7 +304,7 @@ public class CallHandler extends TextWebSocketHandler {
     }
   }
 
-  public void stop(WebSocketSession session) throws IOException {
+  public void stop(WebSocketSession session) {
     String sessionId = session.getId();
     if (pipelines.containsKey(sessionId)) {
       pipelines.get(sessionId).release();
@@ -293,6 +334,7 @@ public class CallHandler extends TextWebSocketHandler {
 
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
+    sender.remove(session);
     stop(session);
     registry.removeBySession(session);
   }
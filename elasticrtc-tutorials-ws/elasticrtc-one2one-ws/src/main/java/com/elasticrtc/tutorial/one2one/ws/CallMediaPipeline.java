@@ -17,10 +17,11 @@
 
 package com.elasticrtc.tutorial.one2one.ws;
 
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.WebRtcEndpoint;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+
 /**
  * Media Pipeline (WebRTC endpoints, i.e. Kurento Media Elements) and connections for the 1 to 1
  * video communication.
@@ -36,7 +37,7 @@ public class CallMediaPipeline {
   private WebRtcEndpoint callerWebRtcEp;
   private WebRtcEndpoint calleeWebRtcEp;
 
-  public CallMediaPipeline(KurentoClient kurento) {
+  public CallMediaPipeline(KurentoClientPool kurento) {
     try {
       this.pipeline = kurento.createMediaPipeline();
       this.callerWebRtcEp = new WebRtcEndpoint.Builder(pipeline).build();
@@ -17,7 +17,6 @@
 
 package com.elasticrtc.tutorial.one2one.ws;
 
-import org.kurento.client.KurentoClient;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -25,6 +24,9 @@ import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.common.SessionSender;
+
 /**
  * Video call 1 to 1 demo (main).
  *
@@ -48,8 +50,13 @@ public class One2OneApp implements WebSocketConfigurer {
   }
 
   @Bean
-  public KurentoClient kurentoClient() {
-    return KurentoClient.create();
+  public KurentoClientPool kurentoClientPool() {
+    return new KurentoClientPool();
+  }
+
+  @Bean
+  public SessionSender sessionSender() {
+    return new SessionSender();
   }
 
   @Override
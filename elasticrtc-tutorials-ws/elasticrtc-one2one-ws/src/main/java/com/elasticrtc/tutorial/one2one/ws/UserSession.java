@@ -17,7 +17,6 @@
 
 package com.elasticrtc.tutorial.one2one.ws;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -25,9 +24,9 @@ import org.kurento.client.IceCandidate;
 import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
+import com.elasticrtc.tutorial.common.SessionSender;
 import com.google.gson.JsonObject;
 
 /**
@@ -44,6 +43,7 @@ public class UserSession {
 
   private final String name;
   private final WebSocketSession session;
+  private final SessionSender sender;
 
   private String sdpOffer;
   private String callingTo;
@@ -51,9 +51,10 @@ public class UserSession {
   private WebRtcEndpoint webRtcEndpoint;
   private final List<IceCandidate> candidateList = new ArrayList<IceCandidate>();
 
-  public UserSession(WebSocketSession session, String name) {
+  public UserSession(WebSocketSession session, String name, SessionSender sender) {
     this.session = session;
     this.name = name;
+    this.sender = sender;
   }
 
   public WebSocketSession getSession() {
@@ -88,9 +89,9 @@ public class UserSession {
     this.callingFrom = callingFrom;
   }
 
-  public void sendMessage(JsonObject message) throws IOException {
+  public void sendMessage(JsonObject message) {
     log.debug("Sending message from user '{}': {}", name, message);
-    session.sendMessage(new TextMessage(message.toString()));
+    sender.send(session, message);
   }
 
   public String getSessionId() {
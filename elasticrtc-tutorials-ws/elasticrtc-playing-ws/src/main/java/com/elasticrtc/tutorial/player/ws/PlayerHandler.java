@@ -17,7 +17,6 @@
 
 package com.elasticrtc.tutorial.player.ws;
 
-import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.kurento.client.EndOfStreamEvent;
@@ -25,7 +24,6 @@ import org.kurento.client.ErrorEvent;
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.MediaState;
 import org.kurento.client.MediaStateChangedEvent;
@@ -42,6 +40,8 @@ import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.common.SessionSender;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
@@ -57,7 +57,10 @@ import com.google.gson.JsonObject;
 public class PlayerHandler extends TextWebSocketHandler {
 
   @Autowired
-  private KurentoClient kurento;
+  private KurentoClientPool kurento;
+
+  @Autowired
+  private SessionSender sender;
 
   private final Logger log = LoggerFactory.getLogger(PlayerHandler.class);
   private final Gson gson = new GsonBuilder().create();
@@ -124,13 +127,7 @@ public class PlayerHandler extends TextWebSocketHandler {
         JsonObject response = new JsonObject();
         response.addProperty("id", "iceCandidate");
         response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-        try {
-          synchronized (session) {
-            session.sendMessage(new TextMessage(response.toString()));
-          }
-        } catch (IOException e) {
-          log.debug(e.getMessage());
-        }
+        sender.send(session, response);
       }
     });
 
@@ -272,16 +269,13 @@ public class PlayerHandler extends TextWebSocketHandler {
     }
   }
 
-  private synchronized void sendMessage(WebSocketSession session, String message) {
-    try {
-      session.sendMessage(new TextMessage(message));
-    } catch (IOException e) {
-      log.error("Exception sending message", e);
-    }
+  private void sendMessage(WebSocketSession session, String message) {
+    sender.send(session, message);
   }
 
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
+    sender.remove(session);
     stop(session.getId());
   }
 }
@@ -17,14 +17,11 @@
 
 package com.elasticrtc.tutorial.recording.ws;
 
-import java.io.IOException;
-
 import org.kurento.client.EndOfStreamEvent;
 import org.kurento.client.ErrorEvent;
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.MediaProfileSpecType;
 import org.kurento.client.MediaType;
@@ -43,6 +40,8 @@ import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
+import com.elasticrtc.tutorial.common.KurentoClientPool;
+import com.elasticrtc.tutorial.common.SessionSender;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
@@ -67,7 +66,10 @@ public class RecorderHandler extends TextWebSocketHandler {
   private UserRegistry registry;
 
   @Autowired
-  private KurentoClient kurento;
+  private KurentoClientPool kurento;
+
+  @Autowired
+  private SessionSender sender;
 
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
@@ -118,6 +120,7 @@ public class RecorderHandler extends TextWebSocketHandler {
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
     super.afterConnectionClosed(session, status);
+    sender.remove(session);
     registry.removeBySession(session);
   }
 
@@ -140,13 +143,7 @@ public class RecorderHandler extends TextWebSocketHandler {
         public void onEvent(RecordingEvent event) {
           JsonObject response = new JsonObject();
           response.addProperty("id", "recording");
-          try {
-            synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
-            }
-          } catch (IOException e) {
-            log.error(e.getMessage());
-          }
+          sender.send(session, response);
         }
 
       });
@@ -157,13 +154,7 @@ public class RecorderHandler extends TextWebSocketHandler {
         public void onEvent(StoppedEvent event) {
           JsonObject response = new JsonObject();
           response.addProperty("id", "stopped");
-          try {
-            synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
-            }
-          } catch (IOException e) {
-            log.error(e.getMessage());
-          }
+          sender.send(session, response);
         }
 
       });
@@ -174,13 +165,7 @@ public class RecorderHandler extends TextWebSocketHandler {
         public void onEvent(PausedEvent event) {
           JsonObject response = new JsonObject();
           response.addProperty("id", "paused");
-          try {
-            synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
-            }
-          } catch (IOException e) {
-            log.error(e.getMessage());
-          }
+          sender.send(session, response);
         }
 
       });
@@ -205,13 +190,7 @@ public class RecorderHandler extends TextWebSocketHandler {
           JsonObject response = new JsonObject();
           response.addProperty("id", "iceCandidate");
           response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-          try {
-            synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
-            }
-          } catch (IOException e) {
-            log.error(e.getMessage());
-          }
+          sender.send(session, response);
         }
       });
 
@@ -219,9 +198,7 @@ public class RecorderHandler extends TextWebSocketHandler {
       response.addProperty("id", "startResponse");
       response.addProperty("sdpAnswer", sdpAnswer);
 
-      synchronized (user) {
-        session.sendMessage(new TextMessage(response.toString()));
-      }
+      sender.send(session, response);
 
       webRtcEndpoint.gatherCandidates();
 
@@ -312,22 +289,14 @@ public class RecorderHandler extends TextWebSocketHandler {
           JsonObject response = new JsonObject();
           response.addProperty("id", "iceCandidate");
           response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-          try {
-            synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
-            }
-          } catch (IOException e) {
-            log.error(e.getMessage());
-          }
+          sender.send(session, response);
         }
       });
 
       // 5. Play recorded stream
       player.play();
 
-      synchronized (session) {
-        session.sendMessage(new TextMessage(response.toString()));
-      }
+      sender.send(session, response);
 
       webRtcEndpoint.gatherCandidates();
     } catch (Throwable t) {
@@ -337,25 +306,17 @@ public class RecorderHandler extends TextWebSocketHandler {
   }
 
   public void sendPlayEnd(WebSocketSession session, MediaPipeline pipeline) {
-    try {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "playEnd");
-      session.sendMessage(new TextMessage(response.toString()));
-    } catch (IOException e) {
-      log.error("Error sending playEndOfStream message", e);
-    }
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "playEnd");
+    sender.send(session, response);
     // Release pipeline
     pipeline.release();
   }
 
   private void sendError(WebSocketSession session, String message) {
-    try {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "error");
-      response.addProperty("message", message);
-      session.sendMessage(new TextMessage(response.toString()));
-    } catch (IOException e) {
-      log.error("Exception sending message", e);
-    }
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "error");
+    response.addProperty("message", message);
+    sender.send(session, response);
   }
 }